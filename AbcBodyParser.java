@@ -0,0 +1,587 @@
+package abc.parser;
+
+import java.util.*;
+import abc.sound.*;
+
+/**
+ * A single pass parser for the body of one voice, as split by MusicParser.splitVoices.
+ * It reads the same subset of abc notation as the body grammar: notes, rests, chords,
+ * duplets, triplets and quadruplets, bar lines, repeats and first and second endings,
+ * and builds each measure straight into a MusicSequence without building a ParseTree.
+ * The grammar remains the reference for what this subset is; see MusicParser.Engine.
+ *
+ * A voice is read in two steps: lex reads the text into measures and bar lines, then assemble
+ * plays out the repeats and endings. EditableTune reads again only the measures an edit touches.
+ */
+class AbcBodyParser {
+
+    /**
+     * The bar lines, by what they do to the measures before and after them
+     */
+    enum Bar {
+        //| only separates two measures
+        BAR,
+        //||, |] and [| end a major section
+        SECTION_END,
+        //|: starts a repeat
+        REPEAT_START,
+        //:| ends a repeat, and :|: also starts the next one
+        REPEAT_END,
+        //[1 starts a first ending
+        FIRST_ENDING,
+        //[2 starts a second ending, which is simply played after the repeat
+        SECOND_ENDING
+    }
+
+    /**
+     * A stretch of the text of a voice as read by lex: a bar line, or the text between two bar lines,
+     * whitespace included, built into a measure. A voice is read as a measure, then a bar line and a
+     * measure as many times as it has bar lines, so measures are at the even indices and the parts
+     * cover the whole text. Immutable. A part knows its length but not its offset, so that the same
+     * part still describes its text after an edit before it, see EditableTune.
+     */
+    static final class Part {
+        final int length;
+        //the bar line, or null for a measure
+        final Bar bar;
+        //the measure built, or null for a bar line or for text with no elements
+        final MusicSequence measure;
+        //the calls that built the measure, as recorded by a PieceRecipe; null unless lex was recording
+        final byte[] recorded;
+
+        private Part(int length, Bar bar, MusicSequence measure, byte[] recorded) {
+            this.length = length;
+            this.bar = bar;
+            this.measure = measure;
+            this.recorded = recorded;
+        }
+    }
+
+    /**
+     * The major sections built by the last call to assemble for a voice, each with the parts it was
+     * built from, so that the next call builds only the sections whose parts have changed
+     */
+    static final class Sections {
+        //each section keyed by its first part
+        private Map<Part, Section> built = new HashMap<>();
+    }
+
+    private static final class Section {
+        private final List<Part> parts;
+        //the section played out, or null if it has no measures
+        private final MusicSequence sequence;
+
+        private Section(List<Part> parts, MusicSequence sequence) {
+            this.parts = parts;
+            this.sequence = sequence;
+        }
+    }
+
+    private final CharSequence voice;
+    //exact length in beats of one unit note length, the duration written as "1"
+    private final long unitBeats;
+    //semitones the key shifts each pitch letter by, indexed from 'A'
+    private final int[] keyAccidentals;
+    private final MusicParser.AccidentalTable accidentals = new MusicParser.AccidentalTable();
+    //calls building the current measure, null unless recording
+    private final PieceRecipe calls;
+    //offset in voice of the next character to read
+    private int position = 0;
+    //offset in voice of the end of the text being read
+    private int end;
+    //elements of the current measure
+    private List<NoteElement> measure = new ArrayList<>();
+    //measures, notes and chords read so far, for ParseMetrics
+    private int measureCount = 0;
+    private int noteCount = 0;
+    private int chordCount = 0;
+
+    /**
+     * @param voice all the music segments of the voice, as split by splitVoices
+     * @param unitBeats packed duration in beats of the unit note length, see MusicParser.unitBeats
+     * @param keyAccidentals semitones the key shifts each pitch letter by, see MusicParser.keyAccidentals
+     */
+    AbcBodyParser(CharSequence voice, long unitBeats, int[] keyAccidentals) {
+        this(voice, unitBeats, keyAccidentals, false);
+    }
+
+    /**
+     * @param voice all the music segments of the voice, as split by splitVoices
+     * @param unitBeats packed duration in beats of the unit note length, see MusicParser.unitBeats
+     * @param keyAccidentals semitones the key shifts each pitch letter by, see MusicParser.keyAccidentals
+     * @param recording true to record the calls that build each measure read, see Part.recorded
+     */
+    private AbcBodyParser(CharSequence voice, long unitBeats, int[] keyAccidentals, boolean recording) {
+        this.voice = voice;
+        this.unitBeats = unitBeats;
+        this.keyAccidentals = keyAccidentals;
+        this.end = voice.length();
+        this.calls = recording ? new PieceRecipe() : null;
+    }
+
+    /**
+     * Parses the body of one voice and builds its AST
+     * @param voice all the music segments of the voice, as split by splitVoices
+     * @param unitBeats packed duration in beats of the unit note length, see MusicParser.unitBeats
+     * @param keyAccidentals semitones the key shifts each pitch letter by, see MusicParser.keyAccidentals
+     * @return MusicSequence AST for the voice, playing the same notes as the one built from the grammar
+     * @throws IllegalArgumentException if the voice is not valid abc notation
+     */
+    static MusicSequence parse(CharSequence voice, long unitBeats, int[] keyAccidentals) {
+        return parse(voice, unitBeats, keyAccidentals, null, null);
+    }
+    
+    /**
+     * Parses the body of one voice and builds its AST, recording what it was built from
+     * @param voice all the music segments of the voice, as split by splitVoices
+     * @param unitBeats packed duration in beats of the unit note length, see MusicParser.unitBeats
+     * @param keyAccidentals semitones the key shifts each pitch letter by, see MusicParser.keyAccidentals
+     * @param probe ParseMetrics counting the measures, notes and chords of the voice, or null
+     * @param recipe PieceRecipe recording the factory calls that build the voice, or null
+     * @return MusicSequence AST for the voice, playing the same notes as the one built from the grammar
+     * @throws IllegalArgumentException if the voice is not valid abc notation
+     */
+    static MusicSequence parse(CharSequence voice, long unitBeats, int[] keyAccidentals, ParseMetrics probe,
+            PieceRecipe recipe) {
+        AbcBodyParser parser = new AbcBodyParser(voice, unitBeats, keyAccidentals, recipe != null);
+        MusicSequence sequence = assemble(parser.lex(0, voice.length()), null, recipe);
+        if (probe != null)
+            probe.countVoice(parser.measureCount, parser.noteCount, parser.chordCount);
+        return sequence;
+    }
+
+    /**
+     * Reads part of the voice into measures and bar lines
+     * @param from offset in voice of the start of a measure: 0, or the end of a bar line
+     * @param to offset in voice of the end of a measure: the length of voice, or the start of a bar line
+     * @return List<Part> the text from from to to, starting and ending with a measure
+     * @throws IllegalArgumentException if the text is not valid abc notation
+     */
+    List<Part> lex(int from, int to) {
+        List<Part> parts = new ArrayList<>();
+        position = from;
+        end = to;
+        int measureStart = from;
+        accidentals.nextMeasure();
+        while (position < end) {
+            char c = voice.charAt(position);
+            if (isWhitespace(c)) {
+                position++;
+            } else if (c == '|' || c == ':' || (c == '[' && isBarAfterBracket())) {
+                parts.add(endMeasure(position - measureStart));
+                int barStart = position;
+                Bar bar = barLine();
+                parts.add(new Part(position - barStart, bar, null, null));
+                measureStart = position;
+            } else {
+                measure.add(element());
+            }
+        }
+        parts.add(endMeasure(end - measureStart));
+        return parts;
+    }
+
+    /**
+     * @return true iff the [ at position starts a bar line or an ending rather than a chord
+     */
+    private boolean isBarAfterBracket() {
+        if (position + 1 >= end)
+            return false;
+        char next = voice.charAt(position + 1);
+        return next == '|' || next == '1' || next == '2';
+    }
+
+    /**
+     * Reads a bar line
+     * @return Bar the bar line at position
+     */
+    private Bar barLine() {
+        char c = voice.charAt(position++);
+        char next = position < end ? voice.charAt(position) : 0;
+        if (c == '|') {
+            if (next == ':') {
+                position++;
+                return Bar.REPEAT_START;
+            }
+            if (next == '|' || next == ']') {
+                position++;
+                return Bar.SECTION_END;
+            }
+            return Bar.BAR;
+        }
+        if (c == ':') {
+            if (next != '|')
+                throw error("Expected :|");
+            position++;
+            if (position < end && voice.charAt(position) == ':')
+                position++;
+            return Bar.REPEAT_END;
+        }
+        //[| , [1 or [2
+        position++;
+        if (next == '|')
+            return Bar.SECTION_END;
+        return next == '1' ? Bar.FIRST_ENDING : Bar.SECOND_ENDING;
+    }
+
+    /**
+     * Ends the current measure
+     * @param length number of characters of the text of the measure
+     * @return Part the measure
+     */
+    private Part endMeasure(int length) {
+        if (measure.isEmpty())
+            return new Part(length, null, null, null);
+        byte[] recorded = null;
+        if (calls != null) {
+            calls.measure(measure.size());
+            recorded = calls.toByteArray();
+            calls.clear();
+        }
+        MusicSequence built = MusicSequence.measure(measure);
+        measureCount++;
+        measure = new ArrayList<>();
+        //an accidental carries through the rest of the measure only
+        accidentals.nextMeasure();
+        return new Part(length, null, built, recorded);
+    }
+
+    /**
+     * Builds the AST of a voice from its measures and bar lines, playing out repeats and endings
+     * @param parts List<Part> the whole voice, as read by lex
+     * @param sections Sections built from an earlier version of the parts, reused where the parts
+     *        of a section are the same objects, and replaced by the sections built now; or null
+     * @return MusicSequence the whole voice, joined from its major sections
+     * @throws IllegalArgumentException if the repeats and endings do not match up or there are no measures
+     */
+    static MusicSequence assemble(List<Part> parts, Sections sections) {
+        return assemble(parts, sections, null);
+    }
+
+    /**
+     * Builds the AST of a voice from its measures and bar lines, recording the calls that build it
+     * @param parts List<Part> the whole voice, as read by lex, recording if recipe is not null
+     * @param sections Sections built from an earlier version of the parts, or null; none are reused while recording
+     * @param recipe PieceRecipe recording the factory calls, or null
+     * @return MusicSequence the whole voice, joined from its major sections
+     * @throws IllegalArgumentException if the repeats and endings do not match up or there are no measures
+     */
+    static MusicSequence assemble(List<Part> parts, Sections sections, PieceRecipe recipe) {
+        Map<Part, Section> built = sections == null ? null : new HashMap<>();
+        List<MusicSequence> voiceSections = new ArrayList<>();
+        int offset = 0;
+        int first = 0;
+        while (first < parts.size()) {
+            //a major section runs to the bar line ending it, or to the end of the voice
+            int last = first;
+            while (last + 1 < parts.size() && parts.get(last).bar != Bar.SECTION_END)
+                last++;
+            List<Part> sectionParts = parts.subList(first, last + 1);
+            Section section = sections == null || recipe != null ? null : sections.built.get(parts.get(first));
+            if (section == null || !section.parts.equals(sectionParts)) {
+                MusicSequence sequence = new SectionBuilder(offset, recipe).build(sectionParts);
+                section = new Section(built == null ? null : new ArrayList<>(sectionParts), sequence);
+            }
+            if (built != null)
+                built.put(parts.get(first), section);
+            if (section.sequence != null)
+                voiceSections.add(section.sequence);
+            for (Part part : sectionParts)
+                offset += part.length;
+            first = last + 1;
+        }
+        if (voiceSections.isEmpty())
+            throw error("Voice has no measures", offset);
+        if (sections != null)
+            sections.built = built;
+        if (recipe != null)
+            recipe.join(voiceSections.size());
+        return MusicParser.joinAll(voiceSections);
+    }
+
+    /**
+     * Plays out the repeats and endings of one major section
+     */
+    private static class SectionBuilder {
+        //measures and repeats of the section
+        private final List<MusicSequence> section = new ArrayList<>();
+        //index in section of the first measure a :| repeats from
+        private int repeatStart = 0;
+        //the start of the repeat, joined when its first ending starts; null outside of a first ending
+        private MusicSequence start = null;
+        //measures of the first ending being read, null outside of a first ending
+        private List<MusicSequence> firstEnding = null;
+        //offset in the voice of the end of the part being built
+        private int offset;
+        //records the calls that build the section, or null
+        private final PieceRecipe recipe;
+
+        private SectionBuilder(int offset, PieceRecipe recipe) {
+            this.offset = offset;
+            this.recipe = recipe;
+        }
+
+        /**
+         * @param parts List<Part> the measures and bar lines of the section, up to the bar line ending it
+         * @return MusicSequence the section played out, or null if it has no measures
+         */
+        private MusicSequence build(List<Part> parts) {
+            for (Part part : parts) {
+                offset += part.length;
+                if (part.bar == null) {
+                    if (part.measure != null) {
+                        (firstEnding != null ? firstEnding : section).add(part.measure);
+                        if (recipe != null)
+                            recipe.append(part.recorded);
+                    }
+                } else if (part.bar == Bar.REPEAT_START) {
+                    repeatStart = section.size();
+                } else if (part.bar == Bar.REPEAT_END) {
+                    endRepeat();
+                } else if (part.bar == Bar.FIRST_ENDING) {
+                    if (firstEnding != null)
+                        throw error("First ending inside a first ending", offset);
+                    start = joinStart();
+                    firstEnding = new ArrayList<>();
+                }
+            }
+            if (firstEnding != null)
+                throw error("First ending is not closed by :|", offset);
+            if (section.isEmpty())
+                return null;
+            if (recipe != null)
+                recipe.join(section.size());
+            return MusicParser.joinAll(section);
+        }
+
+        /**
+         * Takes the measures since the start of the repeat out of the section and joins them,
+         * when they are followed by :| or by a first ending
+         * @return MusicSequence the start of the repeat
+         */
+        private MusicSequence joinStart() {
+            List<MusicSequence> starts = section.subList(repeatStart, section.size());
+            if (starts.isEmpty())
+                throw error("Repeat has no measures", offset);
+            if (recipe != null)
+                recipe.join(starts.size());
+            MusicSequence joined = MusicParser.joinAll(starts);
+            starts.clear();
+            return joined;
+        }
+
+        /**
+         * Adds the repeat played out in place of the measures since its start: the start,
+         * the first ending if there is one, then the start again
+         */
+        private void endRepeat() {
+            List<MusicSequence> parts = new ArrayList<>();
+            if (firstEnding != null) {
+                if (firstEnding.isEmpty())
+                    throw error("First ending has no measures", offset);
+                parts.add(start);
+                parts.addAll(firstEnding);
+                start = null;
+                firstEnding = null;
+            } else {
+                parts.add(joinStart());
+            }
+            //a second ending is simply played after the repeat, so every part before it is repeated
+            if (recipe != null)
+                recipe.repeat(parts.size(), parts.size());
+            section.add(MusicParser.joinAll(MusicParser.repeatLayout(parts, parts.size())));
+            repeatStart = section.size();
+        }
+    }
+
+    /**
+     * Reads one element of a measure
+     * @return NoteElement the rest, note, chord or tuplet at position
+     */
+    private NoteElement element() {
+        char c = voice.charAt(position);
+        if (c == '(')
+            return tuplet();
+        if (c == 'z')
+            return rest();
+        return simpleElement();
+    }
+
+    /**
+     * @return NoteElement the note or chord at position
+     */
+    private NoteElement simpleElement() {
+        if (voice.charAt(position) == '[')
+            return chord();
+        return note();
+    }
+
+    /**
+     * @return NoteElement the duplet, triplet or quadruplet at position, starting with (
+     */
+    private NoteElement tuplet() {
+        position++;
+        char size = position < end ? voice.charAt(position) : 0;
+        if (size < '2' || size > '4')
+            throw error("Expected a duplet, triplet or quadruplet");
+        position++;
+        List<NoteElement> tupletNotes = new ArrayList<>();
+        for (int i = 0; i < size - '0'; i++) {
+            skipWhitespace();
+            if (position >= end)
+                throw error("Tuplet is missing notes");
+            tupletNotes.add(simpleElement());
+        }
+        if (calls != null)
+            calls.tuplet(tupletNotes.size());
+        return NoteElement.tuplet(tupletNotes);
+    }
+
+    /**
+     * @return NoteElement the chord at position, notes between [ and ]
+     */
+    private NoteElement chord() {
+        position++;
+        List<NoteElement> chordNotes = new ArrayList<>();
+        while (true) {
+            skipWhitespace();
+            if (position >= end)
+                throw error("Chord is not closed by ]");
+            if (voice.charAt(position) == ']')
+                break;
+            chordNotes.add(note());
+        }
+        position++;
+        if (chordNotes.isEmpty())
+            throw error("Chord has no notes");
+        chordCount++;
+        if (calls != null)
+            calls.chord(chordNotes.size());
+        return NoteElement.chord(chordNotes);
+    }
+
+    /**
+     * @return NoteElement the rest at position, z followed by an optional duration
+     */
+    private NoteElement rest() {
+        position++;
+        double restDuration = Durations.toDouble(duration());
+        if (calls != null)
+            calls.rest(restDuration);
+        return NoteElement.rest(restDuration);
+    }
+
+    /**
+     * Reads a note: an optional accidental, a pitch letter, octave marks and an optional duration
+     * @return NoteElement the note at position
+     */
+    private NoteElement note() {
+        int length = end;
+        //accidental written on the note, or none
+        boolean written = true;
+        int noteAccidental = 0;
+        char c = voice.charAt(position);
+        if (c == '^' || c == '_') {
+            int shift = c == '^' ? 1 : -1;
+            noteAccidental = shift;
+            position++;
+            if (position < length && voice.charAt(position) == c) {
+                noteAccidental += shift;
+                position++;
+            }
+        } else if (c == '=') {
+            position++;
+        } else {
+            written = false;
+        }
+
+        if (position >= length)
+            throw error("Expected a pitch");
+        char letter = voice.charAt(position);
+        char pitchLetter = Character.toUpperCase(letter);
+        if (pitchLetter < 'A' || pitchLetter > 'G')
+            throw error("Unexpected character '" + letter + "'");
+        position++;
+        //number of octaves higher or lower than middle C
+        int octave = Character.isLowerCase(letter) ? 1 : 0;
+        while (position < length && (voice.charAt(position) == '\'' || voice.charAt(position) == ',')) {
+            octave += voice.charAt(position) == '\'' ? 1 : -1;
+            position++;
+        }
+        long beats = duration();
+        noteCount++;
+
+        //an accidental carries to the same pitch later in the measure, otherwise the key applies
+        if (written)
+            accidentals.put(pitchLetter, octave, noteAccidental);
+        else if (accidentals.contains(pitchLetter, octave))
+            noteAccidental = accidentals.get(pitchLetter, octave);
+        else
+            noteAccidental = keyAccidentals[pitchLetter - 'A'];
+        double noteDuration = Durations.toDouble(beats);
+        if (calls != null)
+            calls.note(octave, noteAccidental, pitchLetter, noteDuration);
+        return NoteElement.note(octave, MusicParser.ACCIDENTAL_NAMES[noteAccidental + 2], pitchLetter, noteDuration);
+    }
+
+    /**
+     * Reads an optional duration, a numerator and/or a / with an optional denominator
+     * @return long packed duration in beats, the unit note length if there is no duration
+     * @throws IllegalArgumentException if the duration is zero or has a zero denominator
+     */
+    private long duration() {
+        int numerator = digits(-1);
+        int denominator = 1;
+        if (position < end && voice.charAt(position) == '/') {
+            position++;
+            denominator = digits(2); //"/" alone halves the note
+            if (numerator < 0)
+                numerator = 1;
+        } else if (numerator < 0) {
+            return unitBeats; //default
+        }
+        if (numerator == 0 || denominator == 0)
+            throw error("Duration must not be zero");
+        return Durations.multiply(unitBeats, Durations.of(numerator, denominator));
+    }
+
+    /**
+     * @param missing value returned if there is no digit at position
+     * @return int the number written in decimal digits at position
+     */
+    private int digits(int missing) {
+        int start = position;
+        int value = 0;
+        while (position < end && voice.charAt(position) >= '0' && voice.charAt(position) <= '9') {
+            value = Math.addExact(Math.multiplyExact(value, 10), voice.charAt(position) - '0');
+            position++;
+        }
+        return position == start ? missing : value;
+    }
+
+    private void skipWhitespace() {
+        while (position < end && isWhitespace(voice.charAt(position)))
+            position++;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * @param message what is wrong with the voice
+     * @return IllegalArgumentException to throw, locating the problem in the voice
+     */
+    private IllegalArgumentException error(String message) {
+        return error(message, position);
+    }
+
+    /**
+     * @param message what is wrong with the voice
+     * @param offset offset in the voice of the problem
+     * @return IllegalArgumentException to throw, locating the problem in the voice
+     */
+    private static IllegalArgumentException error(String message, int offset) {
+        return new IllegalArgumentException(message + " at offset " + offset + " of the voice");
+    }
+}
@@ -0,0 +1,165 @@
+package abc.parser;
+
+/**
+ * Exact rational durations packed into a primitive long, so that they can be added,
+ * scaled and converted to ticks without rounding or allocation. The numerator is stored
+ * in the high 32 bits and the denominator in the low 32 bits. A packed duration is
+ * always in lowest terms with a positive denominator, so equal durations are equal longs.
+ */
+public final class Durations {
+    
+    //Largest denominator fromDouble will look for when recovering a fraction from a double
+    private static final long MAX_RECOVERED_DENOMINATOR = 1 << 16;
+    
+    public static final long ZERO = of(0, 1);
+    public static final long ONE = of(1, 1);
+    
+    private Durations() {
+    }
+    
+    /**
+     * @param numerator numerator of the duration
+     * @param denominator denominator of the duration, not 0
+     * @return long the packed duration numerator / denominator in lowest terms
+     * @throws ArithmeticException if denominator is 0, or the reduced fraction does not fit in 32-bit parts
+     */
+    public static long of(long numerator, long denominator) {
+        if (denominator == 0)
+            throw new ArithmeticException("Zero denominator");
+        if (denominator < 0) {
+            numerator = Math.negateExact(numerator);
+            denominator = Math.negateExact(denominator);
+        }
+        long divisor = gcd(Math.abs(numerator), denominator);
+        numerator /= divisor;
+        denominator /= divisor;
+        if (numerator < Integer.MIN_VALUE || numerator > Integer.MAX_VALUE || denominator > Integer.MAX_VALUE)
+            throw new ArithmeticException("Duration overflow: " + numerator + "/" + denominator);
+        return (numerator << 32) | denominator;
+    }
+    
+    /**
+     * @param duration a packed duration
+     * @return int its numerator
+     */
+    public static int numerator(long duration) {
+        return (int) (duration >> 32);
+    }
+    
+    /**
+     * @param duration a packed duration
+     * @return int its denominator, always positive
+     */
+    public static int denominator(long duration) {
+        return (int) duration;
+    }
+    
+    /**
+     * @param a a packed duration
+     * @param b a packed duration
+     * @return long the packed duration a + b
+     */
+    public static long add(long a, long b) {
+        long numerator = Math.addExact(
+                (long) numerator(a) * denominator(b), (long) numerator(b) * denominator(a));
+        return of(numerator, (long) denominator(a) * denominator(b));
+    }
+    
+    /**
+     * @param a a packed duration
+     * @param b a packed duration
+     * @return long the packed duration a * b
+     */
+    public static long multiply(long a, long b) {
+        return of((long) numerator(a) * numerator(b), (long) denominator(a) * denominator(b));
+    }
+    
+    /**
+     * @param a a packed duration
+     * @param b a packed duration, not zero
+     * @return long the packed duration a / b
+     */
+    public static long divide(long a, long b) {
+        return of((long) numerator(a) * denominator(b), (long) denominator(a) * numerator(b));
+    }
+    
+    /**
+     * Converts a duration in beats to ticks with integer arithmetic only. The result is
+     * exact whenever the denominator divides ticksPerBeat, and rounded half up otherwise.
+     * @param beats a packed duration in beats
+     * @param ticksPerBeat number of ticks in a beat
+     * @return long the duration in ticks
+     */
+    public static long toTicks(long beats, int ticksPerBeat) {
+        long scaled = (long) numerator(beats) * ticksPerBeat;
+        long denominator = denominator(beats);
+        if (scaled % denominator == 0)
+            return scaled / denominator;
+        return Math.floorDiv(2 * scaled + denominator, 2 * denominator);
+    }
+    
+    /**
+     * @param duration a packed duration
+     * @return double the nearest double to the duration
+     */
+    public static double toDouble(long duration) {
+        return numerator(duration) / (double) denominator(duration);
+    }
+    
+    /**
+     * Recovers the fraction a double was computed from, using the continued fraction
+     * expansion of the double up to a denominator of 2^16. Every fraction with such a
+     * denominator, like the 1/8 or 1/3 of a header, comes back exactly.
+     * @param value a finite double
+     * @return long the packed fraction with the smallest denominator nearest to value
+     */
+    public static long fromDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            throw new ArithmeticException("Not a finite duration: " + value);
+        
+        boolean negative = value < 0;
+        double remainder = Math.abs(value);
+        //convergents h/k of the continued fraction, starting from 0/1 and 1/0
+        long previousNumerator = 0, numerator = 1;
+        long previousDenominator = 1, denominator = 0;
+        while (true) {
+            long term = (long) Math.floor(remainder);
+            long nextNumerator = term * numerator + previousNumerator;
+            long nextDenominator = term * denominator + previousDenominator;
+            if (nextDenominator > MAX_RECOVERED_DENOMINATOR)
+                break;
+            previousNumerator = numerator;
+            numerator = nextNumerator;
+            previousDenominator = denominator;
+            denominator = nextDenominator;
+            
+            double fraction = remainder - term;
+            if (fraction == 0 || numerator / (double) denominator == Math.abs(value))
+                break;
+            remainder = 1 / fraction;
+        }
+        return of(negative ? -numerator : numerator, denominator);
+    }
+    
+    /**
+     * @param duration a packed duration
+     * @return String the duration as "numerator/denominator"
+     */
+    public static String toString(long duration) {
+        return numerator(duration) + "/" + denominator(duration);
+    }
+    
+    /**
+     * @param a a non-negative number
+     * @param b a positive number
+     * @return long the greatest common divisor of a and b
+     */
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long next = a % b;
+            a = b;
+            b = next;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,336 @@
+package abc.parser;
+
+import java.util.*;
+import abc.parser.AbcBodyParser.Part;
+import abc.parser.MusicParser.ParseContext;
+import abc.parser.MusicParser.VoiceLine;
+import abc.sound.*;
+
+/**
+ * A tune being edited, parsed again after each edit by reading again only what the edit touched.
+ * An edit within one line of music reads again the measures around it in the voice of that line,
+ * and rebuilds the voice from the measures and major sections it already has for the rest of the
+ * voice: every measure and section whose text is unchanged is the same MusicSequence in the new
+ * piece, and the other voices are kept whole. An edit that touches the header parses the whole
+ * tune again. An edit across lines, or to a "V:", comment or blank line, may move music between
+ * voices, so it splits the body into voices again and reads them all, keeping the header.
+ *
+ * A MusicPiece does not keep the text it was parsed from, so a session keeps the text, where each
+ * line went, and the measures read from each voice, rather than working from the previous piece.
+ * Bodies are read with AbcBodyParser, so pieces are those of MusicParser.parse with Engine.DIRECT.
+ * Not safe for use by several threads.
+ */
+public class EditableTune {
+
+    private String music;
+    //offset of the end of the header, as found by findHeaderEnd
+    private int headerEnd;
+    private ParseContext context;
+    //names of the voices, a single empty name iff there is only one voice
+    private List<String> voiceNames;
+    //lines of the body copied into a voice, in the order of the music
+    private List<VoiceLine> lines;
+    //each voice as read, in the order of voiceNames
+    private Voice[] voices;
+    private MusicPiece piece;
+
+    /**
+     * The text of one voice and what was read from it
+     */
+    private static class Voice {
+        //all the music segments of the voice, as split by splitVoices
+        private final String text;
+        //the text as read by AbcBodyParser.lex
+        private final List<Part> parts;
+        //the major sections last built from parts
+        private final AbcBodyParser.Sections sections;
+        private final MusicSequence sequence;
+
+        private Voice(String text, List<Part> parts, AbcBodyParser.Sections sections, MusicSequence sequence) {
+            this.text = text;
+            this.parts = parts;
+            this.sections = sections;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Parses a whole tune to start editing it
+     * @param music a single tune in abc notation
+     * @throws IllegalArgumentException if the tune is invalid
+     */
+    public EditableTune(CharSequence music) {
+        parseAll(music.toString());
+    }
+
+    /**
+     * @return MusicPiece AST for the current text of the tune
+     */
+    public MusicPiece getPiece() {
+        return piece;
+    }
+
+    /**
+     * @return String the current text of the tune
+     */
+    public String getMusic() {
+        return music;
+    }
+
+    /**
+     * Replaces some of the text of the tune and parses it again, reading again as little as the edit allows
+     * @param offset offset in the current text of the start of the edit
+     * @param removedLength number of characters removed from offset
+     * @param inserted text inserted at offset in their place
+     * @return MusicPiece AST for the edited text of the tune
+     * @throws IndexOutOfBoundsException if the removed characters are not all in the text
+     * @throws IllegalArgumentException if the edited tune is invalid, in which case the tune is left as it was
+     */
+    public MusicPiece edit(int offset, int removedLength, String inserted) {
+        if (offset < 0 || removedLength < 0 || removedLength > music.length() - offset)
+            throw new IndexOutOfBoundsException("Cannot remove " + removedLength + " characters at " + offset
+                    + " of a tune of " + music.length());
+        String edited = music.substring(0, offset) + inserted + music.substring(offset + removedLength);
+
+        //the header ends before the line break of its key field, which an edit at headerEnd joins or extends
+        if (offset <= headerEnd) {
+            parseAll(edited);
+            return piece;
+        }
+
+        int lineIndex = lineOf(offset, removedLength);
+        int change = inserted.length() - removedLength;
+        if (lineIndex < 0 || hasLineBreak(inserted)
+                || !isMusicLine(edited, lines.get(lineIndex).start, lines.get(lineIndex).end + change)) {
+            parseBody(edited, headerEnd, context, voiceNames);
+            return piece;
+        }
+        editLine(edited, lineIndex, offset, removedLength, inserted);
+        return piece;
+    }
+
+    /**
+     * Parses the header and the body of the tune
+     * @param edited the text of the tune
+     */
+    private void parseAll(String edited) {
+        int editedHeaderEnd = MusicParser.findHeaderEnd(edited);
+        ParseContext editedContext = MusicParser.parseHeader(MusicParser.getHeader(edited, editedHeaderEnd));
+        List<String> names = editedContext.header.getVoices();
+        //if there are no voices, there is only one line
+        if (names.size() == 0)
+            names.add("");
+        parseBody(edited, editedHeaderEnd, editedContext, names);
+    }
+
+    /**
+     * Splits the body into voices and reads each of them, then makes the result the state of the tune
+     * @param edited the text of the tune
+     * @param editedHeaderEnd offset of the end of its header
+     * @param editedContext ParseContext of its header
+     * @param names names of its voices
+     */
+    private void parseBody(String edited, int editedHeaderEnd, ParseContext editedContext, List<String> names) {
+        List<VoiceLine> editedLines = new ArrayList<>();
+        Map<String, CharSequence> bodies = MusicParser.splitVoices(edited, editedHeaderEnd, names, editedLines);
+        Voice[] editedVoices = new Voice[names.size()];
+        for (int i = 0; i < editedVoices.length; i++) {
+            String text = bodies.get(names.get(i)).toString();
+            List<Part> parts = new AbcBodyParser(text, editedContext.unitBeats, editedContext.keyAccidentals)
+                    .lex(0, text.length());
+            AbcBodyParser.Sections sections = new AbcBodyParser.Sections();
+            editedVoices[i] = new Voice(text, parts, sections, AbcBodyParser.assemble(parts, sections));
+        }
+
+        music = edited;
+        headerEnd = editedHeaderEnd;
+        context = editedContext;
+        voiceNames = names;
+        lines = editedLines;
+        voices = editedVoices;
+        piece = buildPiece();
+    }
+
+    /**
+     * Applies an edit within one line of music, reading again only the measures it touches
+     * @param edited the text of the tune after the edit
+     * @param lineIndex index in lines of the line edited
+     * @param offset offset in the text of the start of the edit
+     * @param removedLength number of characters removed from offset
+     * @param inserted text inserted at offset in their place
+     */
+    private void editLine(String edited, int lineIndex, int offset, int removedLength, String inserted) {
+        VoiceLine line = lines.get(lineIndex);
+        Voice voice = voices[line.voice];
+        int at = line.voiceStart + offset - line.start;
+        String text = voice.text.substring(0, at) + inserted + voice.text.substring(at + removedLength);
+        List<Part> parts = voice.parts;
+        int change = inserted.length() - removedLength;
+
+        //the first part the edit touches, including one ending where the edit starts: a bar line is read
+        //from its first character and may grow into the text after it, as | does into |:
+        int first = 0;
+        int firstStart = 0;
+        while (firstStart + parts.get(first).length < at) {
+            firstStart += parts.get(first).length;
+            first++;
+        }
+        //the last part the edit touches, and the one after it if the edit reaches its end, as :| may be
+        //made of a : inserted at the end of a measure and the | after it
+        int last = first;
+        int lastEnd = firstStart + parts.get(first).length;
+        while (lastEnd < at + removedLength) {
+            last++;
+            lastEnd += parts.get(last).length;
+        }
+        if (lastEnd == at + removedLength && last + 1 < parts.size()) {
+            last++;
+            lastEnd += parts.get(last).length;
+        }
+        //widen to whole measures, which are at the even indices, so that the text read again starts after
+        //a bar line and ends before one
+        if (first % 2 == 1) {
+            first--;
+            firstStart -= parts.get(first).length;
+        }
+        if (last % 2 == 1) {
+            last++;
+            lastEnd += parts.get(last).length;
+        }
+        //what is left of a bar line may join the next one across an empty measure, as the : of a
+        //|: whose | was removed does with |
+        while (parts.get(last).length == 0 && last + 1 < parts.size()) {
+            last += 2;
+            lastEnd += parts.get(last - 1).length + parts.get(last).length;
+        }
+
+        List<Part> read = new AbcBodyParser(text, context.unitBeats, context.keyAccidentals)
+                .lex(firstStart, lastEnd + change);
+        keepUnchanged(voice.text, parts.subList(first, last + 1), firstStart, text, read, firstStart);
+
+        List<Part> editedParts = new ArrayList<>(parts.size() - (last + 1 - first) + read.size());
+        editedParts.addAll(parts.subList(0, first));
+        editedParts.addAll(read);
+        editedParts.addAll(parts.subList(last + 1, parts.size()));
+        MusicSequence sequence = AbcBodyParser.assemble(editedParts, voice.sections);
+
+        //the lines after the edit move by the change in length, within the voice only for the same voice
+        List<VoiceLine> editedLines = new ArrayList<>(lines.size());
+        editedLines.addAll(lines.subList(0, lineIndex));
+        editedLines.add(new VoiceLine(line.start, line.end + change, line.voice, line.voiceStart));
+        for (VoiceLine after : lines.subList(lineIndex + 1, lines.size()))
+            editedLines.add(new VoiceLine(after.start + change, after.end + change, after.voice,
+                    after.voice == line.voice ? after.voiceStart + change : after.voiceStart));
+
+        music = edited;
+        lines = editedLines;
+        voices = voices.clone();
+        voices[line.voice] = new Voice(text, editedParts, voice.sections, sequence);
+        piece = buildPiece();
+    }
+
+    /**
+     * Replaces the parts read again with the parts they had before wherever their text is unchanged,
+     * from the start and from the end of the text read again, so that the measures and sections
+     * built from them are kept. A part depends on its text only, as accidentals end with the measure.
+     * @param oldText the text of the voice before the edit
+     * @param oldParts List<Part> the parts read again, as they were before the edit
+     * @param oldStart offset in oldText of the first of them
+     * @param newText the text of the voice after the edit
+     * @param newParts List<Part> the same text read again after the edit, changed in place
+     * @param newStart offset in newText of the first of them
+     */
+    private static void keepUnchanged(String oldText, List<Part> oldParts, int oldStart,
+            String newText, List<Part> newParts, int newStart) {
+        int kept = 0;
+        int oldOffset = oldStart;
+        int newOffset = newStart;
+        while (kept < oldParts.size() && kept < newParts.size()
+                && sameText(oldText, oldOffset, oldParts.get(kept), newText, newOffset, newParts.get(kept))) {
+            oldOffset += oldParts.get(kept).length;
+            newOffset += newParts.get(kept).length;
+            newParts.set(kept, oldParts.get(kept));
+            kept++;
+        }
+
+        int oldEnd = oldStart;
+        for (Part part : oldParts)
+            oldEnd += part.length;
+        int newEnd = newStart;
+        for (Part part : newParts)
+            newEnd += part.length;
+        for (int fromEnd = 1; fromEnd <= Math.min(oldParts.size(), newParts.size()) - kept; fromEnd++) {
+            Part oldPart = oldParts.get(oldParts.size() - fromEnd);
+            Part newPart = newParts.get(newParts.size() - fromEnd);
+            oldEnd -= oldPart.length;
+            newEnd -= newPart.length;
+            if (!sameText(oldText, oldEnd, oldPart, newText, newEnd, newPart))
+                break;
+            newParts.set(newParts.size() - fromEnd, oldPart);
+        }
+    }
+
+    /**
+     * @return true iff the two parts are the same kind of part with the same text
+     */
+    private static boolean sameText(String oldText, int oldOffset, Part oldPart,
+            String newText, int newOffset, Part newPart) {
+        return oldPart.length == newPart.length && oldPart.bar == newPart.bar
+                && oldText.regionMatches(oldOffset, newText, newOffset, oldPart.length);
+    }
+
+    /**
+     * @param offset offset of the start of an edit in the body
+     * @param removedLength number of characters it removes
+     * @return int index in lines of the line holding every character the edit removes and the place it
+     *         inserts at, or -1 if there is none, as for an edit across lines or outside of any voice
+     */
+    private int lineOf(int offset, int removedLength) {
+        int low = 0;
+        int high = lines.size() - 1;
+        //the last line starting at or before offset
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (lines.get(middle).start <= offset) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found < 0 || offset + removedLength > lines.get(found).end)
+            return -1;
+        return found;
+    }
+
+    /**
+     * @param text any text
+     * @return true iff text has a line break in it
+     */
+    private static boolean hasLineBreak(String text) {
+        return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    /**
+     * @param edited the text of the tune
+     * @param start offset of the start of a line of the body
+     * @param end offset of its end, before its line break
+     * @return true iff splitVoices copies the line into the voice before it, not being empty, a comment or a "V:" line
+     */
+    private static boolean isMusicLine(String edited, int start, int end) {
+        if (end <= start || edited.charAt(start) == '%')
+            return false;
+        return !(end - start >= 2 && edited.charAt(start) == 'V' && edited.charAt(start + 1) == ':');
+    }
+
+    /**
+     * @return MusicPiece the header and the voices as they are now
+     */
+    private MusicPiece buildPiece() {
+        List<MusicSequence> voiceSequences = new ArrayList<>(voices.length);
+        for (Voice voice : voices)
+            voiceSequences.add(voice.sequence);
+        return new MusicPiece(context.header, voiceSequences);
+    }
+}
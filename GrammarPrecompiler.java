@@ -0,0 +1,34 @@
+package abc.parser;
+
+import java.io.*;
+import lib6005.parser.UnableToParseException;
+
+/**
+ * Build step that compiles HeaderGrammar.g and Abc.g and serializes the resulting
+ * parsers into the grammars.ser resource, so that MusicParser can deserialize them
+ * at startup instead of compiling the grammars at runtime.
+ * 
+ * Run after the grammar files have been copied to the output directory:
+ *   java abc.parser.GrammarPrecompiler bin/abc/parser
+ */
+public class GrammarPrecompiler {
+    
+    /**
+     * Writes the precompiled grammars resource
+     * @param args a single argument, the output directory of the abc.parser package
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("usage: GrammarPrecompiler <abc/parser output directory>");
+            System.exit(2);
+        }
+        File output = new File(args[0], MusicParser.PRECOMPILED_GRAMMARS);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            MusicParser.writePrecompiledGrammars(out);
+        } catch (IOException | UnableToParseException e) {
+            output.delete();
+            System.err.println("Could not precompile grammars: " + e);
+            System.exit(1);
+        }
+    }
+}
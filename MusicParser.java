@@ -1,8 +1,13 @@
 package abc.parser;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
 import abc.sound.*;
 import abc.sound.Header.HeaderBuilder;
 import lib6005.parser.*;
@@ -28,12 +33,164 @@ public class MusicParser {
     enum ABCGrammar{ROOT, MAJORSECTION, SEQUENCE, BLOCK, REPEAT, START, END1, END2, MEASURE, ELEMENT,
                     REST, NOTE, CHORD, TUPLET, DUPLET, TRIPLET, QUADRUPLET, PITCH, DURATION, ACCIDENTAL, WHITESPACE};
     
-    //Array that converts major keys to an int with index 0 being 7 flats and index 14 = 7 sharps
-    private final static List<String> MAJORKEYS = Arrays.asList(
-            "Cb", "Gb", "Db", "Ab", "Eb", "Bb", "F", "C", "G", "D", "A", "E", "B", "F#", "C#");
-    //Same array as above for minor keys
-    private final static List<String> MINORKEYS = Arrays.asList(
-            "Abm", "Ebm", "Bbm", "Fm", "Cm", "Gm", "Dm", "Am", "Em", "Bm", "F#", "C#m", "G#m", "D#m", "A#m");
+    //Key spellings (tonic followed by a lower case mode) to their number of sharps, -7 being 7 flats
+    private final static Map<String, Integer> KEY_SIGNATURES = keySignatures();
+    
+    //Accidentals by the number of semitones they shift a note, from -2 to 2
+    final static String[] ACCIDENTAL_NAMES = {"__", "_", "=", "^", "^^"};
+    //Semitones above C of the pitch letters A to G
+    private final static int[] LETTER_SEMITONES = {9, 11, 0, 2, 4, 5, 7};
+    
+    //Grammar sources, loaded from the classpath next to this class
+    static final String HEADER_GRAMMAR = "HeaderGrammar.g";
+    static final String BODY_GRAMMAR = "Abc.g";
+    //Classpath resource holding both parsers serialized at build time by GrammarPrecompiler
+    static final String PRECOMPILED_GRAMMARS = "grammars.ser";
+    
+    //Files at least this large are memory-mapped instead of read onto the heap
+    static final long MAPPED_THRESHOLD = 4 * 1024 * 1024;
+    
+    //Compiled grammars shared by every parse, null until the first parse loads them
+    private static volatile Grammars grammars = null;
+    //false once the grammars have been invalidated, since the precompiled resource may then be stale
+    private static boolean usePrecompiled = true;
+    
+    //instrumentation of every parse, null unless installed by setMetrics
+    private static volatile ParseMetrics metrics = null;
+    
+    /**
+     * Immutable pair of the compiled header and body parsers
+     */
+    private static class Grammars {
+        private final Parser<HeaderGrammar> headerParser;
+        private final Parser<ABCGrammar> bodyParser;
+        
+        private Grammars(Parser<HeaderGrammar> headerParser, Parser<ABCGrammar> bodyParser) {
+            this.headerParser = headerParser;
+            this.bodyParser = bodyParser;
+        }
+    }
+    
+    /**
+     * How the body of each voice is parsed
+     */
+    public enum Engine {
+        //the generic body grammar, building a ParseTree that is then walked into the AST
+        GRAMMAR,
+        //the hand-written AbcBodyParser, building the AST in a single pass over the text
+        DIRECT
+    }
+    
+    /**
+     * Immutable state derived once from the header of a piece and shared by every voice
+     */
+    static class ParseContext {
+        //in place of a fraction the header does not write; never a packed duration, whose denominator is positive
+        static final long UNWRITTEN = 0;
+        
+        final Header header;
+        //exact length in beats of one unit note length, the duration written as "1"
+        final long unitBeats;
+        //semitones the key shifts each pitch letter by, indexed from 'A'
+        final int[] keyAccidentals;
+        
+        /**
+         * @param header Header of the piece
+         * @param length packed unit note length written in L:, or UNWRITTEN to take the default of header
+         * @param beatLength packed beat length written in Q:, or UNWRITTEN to take the default of header
+         */
+        ParseContext(Header header, long length, long beatLength) {
+            this.header = header;
+            this.unitBeats = Durations.divide(
+                    length == UNWRITTEN ? Durations.fromDouble(header.getDefaultLength()) : length,
+                    beatLength == UNWRITTEN ? Durations.fromDouble(header.getBeatLength()) : beatLength);
+            this.keyAccidentals = keyAccidentals(header.getKey());
+        }
+    }
+    
+    /**
+     * Where splitVoices copied one line of the body from, and where it copied it to: the voice
+     * and the offset in that voice
+     */
+    static class VoiceLine {
+        //offsets in the music of the start of the line and of its end, before its line break
+        final int start;
+        final int end;
+        //index in the voice names of the voice the line was copied into
+        final int voice;
+        //offset in that voice of the start of the line
+        final int voiceStart;
+        
+        VoiceLine(int start, int end, int voice, int voiceStart) {
+            this.start = start;
+            this.end = end;
+            this.voice = voice;
+            this.voiceStart = voiceStart;
+        }
+    }
+    
+    /**
+     * The outcome of parsing one file of a batch: either the parsed piece or the
+     * exception that made the file unparseable
+     */
+    public static class ParseResult {
+        private final Path file;
+        private final MusicPiece piece;
+        private final RuntimeException failure;
+        
+        private ParseResult(Path file, MusicPiece piece, RuntimeException failure) {
+            this.file = file;
+            this.piece = piece;
+            this.failure = failure;
+        }
+        
+        /**
+         * @return Path the file this result belongs to
+         */
+        public Path getFile() {
+            return file;
+        }
+        
+        /**
+         * @return true iff the file was parsed successfully
+         */
+        public boolean isSuccess() {
+            return failure == null;
+        }
+        
+        /**
+         * @return MusicPiece the parsed piece
+         * @throws IllegalStateException if the file could not be parsed
+         */
+        public MusicPiece getPiece() {
+            if (failure != null)
+                throw new IllegalStateException("No piece for " + file, failure);
+            return piece;
+        }
+        
+        /**
+         * @return RuntimeException why the file could not be parsed, or null if it was parsed
+         */
+        public RuntimeException getFailure() {
+            return failure;
+        }
+    }
+    
+    /**
+     * Installs the instrumentation recording the stages of every following parse,
+     * or removes it so that parses record nothing
+     * @param parseMetrics ParseMetrics to record into, or null to stop recording
+     */
+    public static void setMetrics(ParseMetrics parseMetrics) {
+        metrics = parseMetrics;
+    }
+    
+    /**
+     * @return ParseMetrics recording every parse, or null if parses are not recorded
+     */
+    public static ParseMetrics getMetrics() {
+        return metrics;
+    }
     
     /**
      * Parse Music.git 
@@ -42,18 +199,144 @@ public class MusicParser {
      * @throws IllegalArgumentException if the expression is invalid 
      */
     public static MusicPiece parse(File inputMusic){
+        return parse(inputMusic, null);
+    }
+    
+    /**
+     * Parse Music.git, optionally extracting, parsing and building each voice on a separate task.
+     * The resulting piece is the same as the one built by parse(inputMusic).
+     * @param inputMusic abc file to parse
+     * @param voiceExecutor runs one task per voice, or null to build the voices in turn on the calling thread
+     * @return MusicPiece AST for the input, with its voices in header order
+     * @throws IllegalArgumentException if the expression is invalid 
+     */
+    public static MusicPiece parse(File inputMusic, Executor voiceExecutor){
+        return parse(inputMusic, voiceExecutor, Engine.GRAMMAR);
+    }
+    
+    /**
+     * Parse Music.git, parsing the body of each voice with the given engine.
+     * Both engines build pieces that play the same notes; GRAMMAR is the reference for DIRECT.
+     * @param inputMusic abc file to parse
+     * @param voiceExecutor runs one task per voice, or null to build the voices in turn on the calling thread
+     * @param engine Engine parsing the body of each voice
+     * @return MusicPiece AST for the input, with its voices in header order
+     * @throws IllegalArgumentException if the expression is invalid 
+     */
+    public static MusicPiece parse(File inputMusic, Executor voiceExecutor, Engine engine){
+        ParseMetrics probe = metrics;
+        ParseMetrics.Stopwatch stopwatch = probe == null ? null : probe.stopwatch();
+        
+        //Decode the file into characters
+        CharBuffer input;
+        try {
+            input = readMusic(inputMusic.toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + inputMusic + ": " + e, e);
+        }
+        if (stopwatch != null)
+            stopwatch.lap(ParseMetrics.Stage.READ);
+        return parseTune(input, voiceExecutor, engine);
+    }
+    
+    /**
+     * Parses the text of a single tune with the grammar
+     * @param input a piece of music in abc notation
+     * @param voiceExecutor runs one task per voice, or null to build the voices in turn on the calling thread
+     * @return MusicPiece AST for the input, with its voices in header order
+     * @throws IllegalArgumentException if the expression is invalid 
+     */
+    static MusicPiece parseTune(CharSequence input, Executor voiceExecutor) {
+        return parseTune(input, voiceExecutor, Engine.GRAMMAR);
+    }
+    
+    /**
+     * Parses the text of a single tune
+     * @param input a piece of music in abc notation
+     * @param voiceExecutor runs one task per voice, or null to build the voices in turn on the calling thread
+     * @param engine Engine parsing the body of each voice
+     * @return MusicPiece AST for the input, with its voices in header order
+     * @throws IllegalArgumentException if the expression is invalid 
+     */
+    static MusicPiece parseTune(CharSequence input, Executor voiceExecutor, Engine engine) {
+        return parseTune(input, voiceExecutor, engine, null);
+    }
+    
+    /**
+     * Parses the text of a single tune
+     * @param input a piece of music in abc notation
+     * @param voiceExecutor runs one task per voice, or null to build the voices in turn on the calling thread
+     * @param engine Engine parsing the body of each voice
+     * @param recipe PieceRecipe recording the calls that build the piece, or null
+     * @return MusicPiece AST for the input, with its voices in header order
+     * @throws IllegalArgumentException if the expression is invalid 
+     */
+    static MusicPiece parseTune(CharSequence input, Executor voiceExecutor, Engine engine, PieceRecipe recipe) {
+        Tune<MusicSequence> tune = parseVoices(input, voiceExecutor, recipe,
+                (voice, context, probe, voiceRecipe) -> parseVoice(voice,
+                        engine == Engine.GRAMMAR ? getGrammars().bodyParser : null, context, probe, voiceRecipe));
+        //Combine the two parts
+        return new MusicPiece(tune.header, tune.voices);
+    }
+    
+    /**
+     * Builds one voice of a tune from its body
+     */
+    private interface VoiceBuilder<T> {
+        /**
+         * @param voice all the music segments of the voice, as split by splitVoices
+         * @param context ParseContext of the piece
+         * @param probe ParseMetrics recording the parse, or null
+         * @param voiceRecipe PieceRecipe of this voice alone, recording the calls that build it; or null
+         * @return T the voice built
+         * @throws IOException if a grammar resource cannot be read
+         * @throws UnableToParseException if the voice does not match the body grammar
+         */
+        T build(CharSequence voice, ParseContext context, ParseMetrics probe, PieceRecipe voiceRecipe)
+                throws IOException, UnableToParseException;
+    }
+    
+    /**
+     * The header of a tune and what was built from each of its voices, in header order
+     */
+    private static class Tune<T> {
+        private final Header header;
+        private final List<T> voices;
+        
+        private Tune(Header header, List<T> voices) {
+            this.header = header;
+            this.voices = voices;
+        }
+    }
+    
+    /**
+     * Parses the header of a tune, splits its body into voices and builds each voice.
+     * Shared by every kind of parse, which differ only in what they build from a voice.
+     * @param input a piece of music in abc notation
+     * @param voiceExecutor runs one task per voice, or null to build the voices in turn on the calling thread
+     * @param recipe PieceRecipe recording the setters called on the header builder, then the calls recorded
+     *        while building each voice in header order; or null
+     * @param voiceBuilder builds each voice
+     * @return Tune<T> the header of the tune and its voices, in header order
+     * @throws IllegalArgumentException if the expression is invalid 
+     */
+    private static <T> Tune<T> parseVoices(CharSequence input, Executor voiceExecutor, PieceRecipe recipe,
+            VoiceBuilder<T> voiceBuilder) {
+        ParseMetrics probe = metrics;
+        ParseMetrics.Stopwatch stopwatch = probe == null ? null : probe.stopwatch();
         try {
-            //Convert file into string
-            String input = fileToString(inputMusic);
-            
             //Cut input string into header part
-            String header = getHeader(input);
+            int headerEnd = findHeaderEnd(input);
+            String header = getHeader(input, headerEnd);
+            if (stopwatch != null)
+                stopwatch.lap(ParseMetrics.Stage.HEADER_SPLIT);
             
             //Parse the header of abc file into a header class
-            Parser<HeaderGrammar> headerParser = GrammarCompiler.compile(
-                    new File("src/abc/parser/HeaderGrammar.g"), HeaderGrammar.ROOT);
-            ParseTree<HeaderGrammar> headerTree = headerParser.parse(header);
-            Header musicHeader = buildHeader(headerTree, header);
+            ParseTree<HeaderGrammar> headerTree = getGrammars().headerParser.parse(header);
+            ParseContext context = buildContext(headerTree, header, recipe);
+            Header musicHeader = context.header;
+            if (stopwatch != null)
+                stopwatch.lap(ParseMetrics.Stage.HEADER_PARSE);
             
             //Get the voices from the header
             List<String> voices = musicHeader.getVoices();
@@ -61,29 +344,514 @@ public class MusicParser {
             if (voices.size() == 0)
                 voices.add("");
             
-            //Parse the body into voices
-            Parser<ABCGrammar> bodyParser = GrammarCompiler.compile(new File("src/abc/parser/Abc.g"), ABCGrammar.ROOT);
+            //Split the body into voices in one pass, then build each voice
+            Map<String, CharSequence> voiceBodies = splitVoices(input, headerEnd, voices);
+            if (stopwatch != null)
+                stopwatch.lap(ParseMetrics.Stage.VOICE_SPLIT);
             
-            List<MusicSequence> voiceSequences = new ArrayList<MusicSequence>();
-            for(String voiceName: voices) {
-                String voice = getVoice(input, voiceName);
-                ParseTree<ABCGrammar> voiceTree = bodyParser.parse(voice);
-                MusicSequence voiceSequence = buildVoice(voiceTree, musicHeader);
-                voiceSequences.add(voiceSequence);
+            //each voice records into its own recipe, so that voices built concurrently do not interleave
+            List<PieceRecipe> voiceRecipes = new ArrayList<>(voices.size());
+            for (int i = 0; recipe != null && i < voices.size(); i++)
+                voiceRecipes.add(new PieceRecipe());
+            
+            List<T> built = new ArrayList<>(voices.size());
+            if (voiceExecutor == null || voices.size() == 1) {
+                for (int i = 0; i < voices.size(); i++) {
+                    built.add(voiceBuilder.build(voiceBodies.get(voices.get(i)), context, probe,
+                            recipe == null ? null : voiceRecipes.get(i)));
+                }
+            } else {
+                //start every voice, then collect them in header order
+                List<FutureTask<T>> voiceTasks = new ArrayList<>();
+                for (int i = 0; i < voices.size(); i++) {
+                    CharSequence voice = voiceBodies.get(voices.get(i));
+                    PieceRecipe voiceRecipe = recipe == null ? null : voiceRecipes.get(i);
+                    FutureTask<T> voiceTask = new FutureTask<>(() -> voiceBuilder.build(voice, context, probe, voiceRecipe));
+                    voiceTasks.add(voiceTask);
+                    voiceExecutor.execute(voiceTask);
+                }
+                try {
+                    for (FutureTask<T> voiceTask : voiceTasks)
+                        built.add(awaitVoice(voiceTask));
+                } finally {
+                    for (FutureTask<T> voiceTask : voiceTasks)
+                        voiceTask.cancel(true);
+                }
             }
             
-            //Combine the two parts
-            return new MusicPiece(musicHeader, voiceSequences);
+            for (PieceRecipe voiceRecipe : voiceRecipes)
+                recipe.append(voiceRecipe);
+            
+            if (probe != null)
+                probe.countTune(voices.size());
+            return new Tune<>(musicHeader, built);
                
         } catch (IOException e) {
-            throw new IllegalArgumentException("Cannot parse!");
+            throw new IllegalArgumentException("Cannot parse!", e);
         } catch (UnableToParseException e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException("Cannot parse!");
+            throw new IllegalArgumentException("Cannot parse!", e);
         }
     }
     
+    /**
+     * Parses one voice and builds its AST
+     * @param voice all the music segments of the voice, as split by splitVoices
+     * @param bodyParser compiled body grammar, or null to parse with AbcBodyParser instead
+     * @param context ParseContext of the piece
+     * @param probe ParseMetrics recording the parse, or null
+     * @param recipe PieceRecipe recording the calls that build the voice, or null
+     * @return MusicSequence AST for the voice
+     * @throws UnableToParseException if the voice does not match the body grammar
+     */
+    private static MusicSequence parseVoice(CharSequence voice, Parser<ABCGrammar> bodyParser,
+            ParseContext context, ParseMetrics probe, PieceRecipe recipe) throws UnableToParseException {
+        //voices may be parsed on other threads, so each has its own stopwatch
+        ParseMetrics.Stopwatch stopwatch = probe == null ? null : probe.stopwatch();
+        if (bodyParser == null) {
+            MusicSequence sequence = AbcBodyParser.parse(voice, context.unitBeats, context.keyAccidentals, probe, recipe);
+            if (recipe != null)
+                recipe.voice();
+            if (stopwatch != null)
+                stopwatch.lap(ParseMetrics.Stage.BODY_PARSE);
+            return sequence;
+        }
+        
+        ParseTree<ABCGrammar> voiceTree = bodyParser.parse(voice.toString());
+        if (stopwatch != null)
+            stopwatch.lap(ParseMetrics.Stage.BODY_PARSE);
+        MusicSequence sequence = buildVoice(voiceTree, context, recipe);
+        if (recipe != null)
+            recipe.voice();
+        if (stopwatch != null) {
+            stopwatch.lap(ParseMetrics.Stage.AST_BUILD);
+            countVoice(voiceTree, probe);
+        }
+        return sequence;
+    }
     
+    /**
+     * Records the number of measures, notes and chords of a voice
+     * @param tree ParseTree<ABCGrammar> of the voice
+     * @param probe ParseMetrics to record them into
+     */
+    private static void countVoice(ParseTree<ABCGrammar> tree, ParseMetrics probe) {
+        long measures = 0, notes = 0, chords = 0;
+        Deque<ParseTree<ABCGrammar>> pending = new ArrayDeque<>();
+        pending.push(tree);
+        while (!pending.isEmpty()) {
+            ParseTree<ABCGrammar> node = pending.pop();
+            switch(node.getName()) {
+            case MEASURE:
+                measures++;
+                break;
+            case NOTE:
+                notes++;
+                continue; //the children of a note are its pitch, accidental and duration
+            case CHORD:
+                chords++;
+                break;
+            default:
+                break;
+            }
+            for (ParseTree<ABCGrammar> child : node.children())
+                pending.push(child);
+        }
+        probe.countVoice(measures, notes, chords);
+    }
+    
+    /**
+     * Waits for a voice task started by parseVoices and rethrows whatever it failed with
+     * @param voiceTask task running a VoiceBuilder
+     * @return T the voice built by the task
+     * @throws IOException if a grammar resource cannot be read
+     * @throws UnableToParseException if the voice does not match the body grammar
+     */
+    private static <T> T awaitVoice(FutureTask<T> voiceTask) throws IOException, UnableToParseException {
+        try {
+            return voiceTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing voices", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnableToParseException)
+                throw (UnableToParseException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException("Voice task failed", cause);
+        }
+    }
+    
+    /**
+     * Parses a file into the compact event form of each of its voices instead of a MusicPiece
+     * @param inputMusic abc file to parse
+     * @return List<VoiceEvents> the events of every voice, in header order
+     * @throws IllegalArgumentException if the file cannot be read or is invalid
+     */
+    public static List<VoiceEvents> parseEvents(File inputMusic) {
+        return parseEvents(inputMusic, null);
+    }
+    
+    /**
+     * Parses a file into the compact event form of each of its voices instead of a MusicPiece,
+     * optionally parsing each voice on a separate task. Events are built from the parse tree of
+     * each voice, so bodies are always parsed with the grammar, as with Engine.GRAMMAR.
+     * @param inputMusic abc file to parse
+     * @param voiceExecutor runs one task per voice, or null to parse the voices in turn on the calling thread
+     * @return List<VoiceEvents> the events of every voice, in header order
+     * @throws IllegalArgumentException if the file cannot be read or is invalid
+     */
+    public static List<VoiceEvents> parseEvents(File inputMusic, Executor voiceExecutor) {
+        ParseMetrics probe = metrics;
+        ParseMetrics.Stopwatch stopwatch = probe == null ? null : probe.stopwatch();
+        
+        //Decode the file into characters
+        CharBuffer input;
+        try {
+            input = readMusic(inputMusic.toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + inputMusic + ": " + e, e);
+        }
+        if (stopwatch != null)
+            stopwatch.lap(ParseMetrics.Stage.READ);
+        return parseVoices(input, voiceExecutor, null, MusicParser::parseVoiceEvents).voices;
+    }
+    
+    /**
+     * Parses one voice with the grammar and builds its events
+     * @param voice all the music segments of the voice, as split by splitVoices
+     * @param context ParseContext of the piece
+     * @param probe ParseMetrics recording the parse, or null
+     * @param recipe unused, as events are not recorded
+     * @return VoiceEvents the events of the voice
+     * @throws IOException if a grammar resource cannot be read
+     * @throws UnableToParseException if the voice does not match the body grammar
+     */
+    private static VoiceEvents parseVoiceEvents(CharSequence voice, ParseContext context, ParseMetrics probe,
+            PieceRecipe recipe) throws IOException, UnableToParseException {
+        //voices may be parsed on other threads, so each has its own stopwatch
+        ParseMetrics.Stopwatch stopwatch = probe == null ? null : probe.stopwatch();
+        ParseTree<ABCGrammar> voiceTree = getGrammars().bodyParser.parse(voice.toString());
+        if (stopwatch != null)
+            stopwatch.lap(ParseMetrics.Stage.BODY_PARSE);
+        VoiceEvents events = buildEvents(voiceTree, context);
+        if (stopwatch != null) {
+            stopwatch.lap(ParseMetrics.Stage.AST_BUILD);
+            countVoice(voiceTree, probe);
+        }
+        return events;
+    }
+    
+    /**
+     * Lazily parses a collection file holding many tunes, each starting with an "X:" field line.
+     * Tunes are read and parsed one at a time as the stream is consumed, so memory is bounded by
+     * the largest tune rather than by the collection; anything before the first "X:" line is skipped.
+     * Use iterator() on the result to pull tunes one by one.
+     * The stream holds the file open and must be closed.
+     * @param collection abc file holding one or more tunes
+     * @return Stream<MusicPiece> the tunes of the collection, in file order
+     * @throws IOException if the file cannot be opened
+     */
+    public static Stream<MusicPiece> parseCollection(Path collection) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(collection, Charset.defaultCharset());
+        try {
+            Iterator<String> tunes = new TuneReader(reader);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(tunes, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(() -> {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .map(tune -> parseTune(tune, null));
+        } catch (RuntimeException | Error e) {
+            //the stream was never handed out, so nothing else will close the reader
+            try {
+                reader.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Parses a single tune of a collection file, reading only the bytes the index records for it
+     * @param collection abc file holding one or more tunes
+     * @param index index built from the collection by TuneIndex.build
+     * @param number "X:" number of the tune to parse
+     * @return MusicPiece AST for the tune
+     * @throws IllegalArgumentException if the index has no such tune, the index is stale because the collection
+     *         has changed since it was indexed, or the tune cannot be read or is invalid
+     */
+    public static MusicPiece parseIndexedTune(Path collection, TuneIndex index, int number) {
+        TuneIndex.Entry entry = index.getTune(number);
+        if (entry == null)
+            throw new IllegalArgumentException("No tune X:" + number + " in " + collection);
+        
+        CharBuffer input;
+        try {
+            //an edited collection would have the tune somewhere else, so its recorded bytes are not read
+            long size = Files.size(collection);
+            if (size != index.getCollectionSize())
+                throw new IllegalArgumentException("Tune index is stale: " + collection + " is " + size
+                        + " bytes long but was " + index.getCollectionSize() + " bytes long when indexed");
+            input = readMusic(collection, entry.getOffset(), entry.getLength());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + collection + ": " + e, e);
+        }
+        //an edit that kept the size of the collection may still have moved the tune
+        if (input.length() < 2 || input.charAt(0) != 'X' || input.charAt(1) != ':')
+            throw new IllegalArgumentException("Tune index is stale: no tune starts at offset "
+                    + entry.getOffset() + " of " + collection + " where X:" + number + " was indexed");
+        return parseTune(input, null);
+    }
+    
+    /**
+     * Splits the text read from a collection into tunes, one tune at a time
+     */
+    private static class TuneReader implements Iterator<String> {
+        private final BufferedReader reader;
+        //first line of the next tune, already read; null once the collection is exhausted
+        private String nextTuneStart;
+        
+        private TuneReader(BufferedReader reader) {
+            this.reader = reader;
+            //skip everything before the first tune
+            String line = readLine();
+            while (line != null && !isTuneStart(line))
+                line = readLine();
+            this.nextTuneStart = line;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return nextTuneStart != null;
+        }
+        
+        @Override
+        public String next() {
+            if (nextTuneStart == null)
+                throw new NoSuchElementException();
+            
+            StringBuilder tune = new StringBuilder(nextTuneStart).append('\n');
+            String line = readLine();
+            while (line != null && !isTuneStart(line)) {
+                tune.append(line).append('\n');
+                line = readLine();
+            }
+            nextTuneStart = line;
+            return tune.toString();
+        }
+        
+        /**
+         * @return String the next line of the collection, or null at its end
+         */
+        private String readLine() {
+            try {
+                return reader.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        /**
+         * @param line a line of the collection
+         * @return true iff line is the "X:" field that starts a tune
+         */
+        private static boolean isTuneStart(String line) {
+            return line.startsWith("X:");
+        }
+    }
+    
+    /**
+     * Parses every file of a batch in parallel, using one worker per available processor
+     * @param files abc files to parse
+     * @return List<ParseResult> one result per file, in the iteration order of files
+     */
+    public static List<ParseResult> parseAll(Collection<Path> files) {
+        return parseAll(files, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Parses every file of a batch in parallel. All workers share the compiled grammars,
+     * and a file that cannot be parsed is reported in its result without affecting the others.
+     * @param files abc files to parse
+     * @param parallelism number of worker threads, must be positive
+     * @return List<ParseResult> one result per file, in the iteration order of files
+     * @throws IllegalArgumentException if parallelism is not positive
+     */
+    public static List<ParseResult> parseAll(Collection<Path> files, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, files.size())));
+        try {
+            List<Future<ParseResult>> pending = new ArrayList<>(files.size());
+            for (Path file : files) {
+                pending.add(workers.submit(() -> {
+                    try {
+                        return new ParseResult(file, parse(file.toFile()), null);
+                    } catch (RuntimeException e) {
+                        return new ParseResult(file, null, e);
+                    }
+                }));
+            }
+            
+            List<ParseResult> results = new ArrayList<>(pending.size());
+            for (Future<ParseResult> result : pending)
+                results.add(result.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing batch", e);
+        } catch (ExecutionException e) {
+            //workers catch RuntimeExceptions themselves, so only Errors end up here
+            throw new IllegalStateException("Worker failed while parsing batch", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+    
+    /**
+     * Parses every .abc file under a directory in parallel, one worker per available processor
+     * @param directory root of the directory tree to search for .abc files
+     * @return List<ParseResult> one result per .abc file, ordered by path
+     * @throws IOException if the directory tree cannot be walked
+     */
+    public static List<ParseResult> parseDirectory(Path directory) throws IOException {
+        return parseDirectory(directory, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Parses every .abc file under a directory in parallel
+     * @param directory root of the directory tree to search for .abc files
+     * @param parallelism number of worker threads, must be positive
+     * @return List<ParseResult> one result per .abc file, ordered by path
+     * @throws IOException if the directory tree cannot be walked
+     * @throws IllegalArgumentException if parallelism is not positive
+     */
+    public static List<ParseResult> parseDirectory(Path directory, int parallelism) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(directory)) {
+            walk.filter(file -> Files.isRegularFile(file) && file.toString().endsWith(".abc"))
+                .sorted()
+                .forEach(files::add);
+        }
+        return parseAll(files, parallelism);
+    }
+    
+    /**
+     * Returns the compiled header and body grammars, loading them on first use from the
+     * precompiled resource, or compiling them from the classpath grammars if there is none.
+     * Safe to call from several threads; the grammars are loaded at most once
+     * between invalidations.
+     * @return Grammars the shared compiled parsers
+     * @throws IOException if a grammar resource cannot be read
+     * @throws UnableToParseException if a grammar resource is not a valid grammar
+     */
+    private static Grammars getGrammars() throws IOException, UnableToParseException {
+        Grammars compiled = grammars;
+        if (compiled == null) {
+            synchronized (MusicParser.class) {
+                compiled = grammars;
+                if (compiled == null) {
+                    if (usePrecompiled)
+                        compiled = readPrecompiledGrammars();
+                    if (compiled == null)
+                        compiled = compileGrammars();
+                    grammars = compiled;
+                }
+            }
+        }
+        return compiled;
+    }
+    
+    /**
+     * Discards the compiled grammars so that the next parse recompiles them from the
+     * classpath grammar sources, for use after HeaderGrammar.g or Abc.g has changed
+     */
+    public static void invalidateGrammars() {
+        synchronized (MusicParser.class) {
+            grammars = null;
+            usePrecompiled = false;
+        }
+    }
+    
+    /**
+     * Compiles both grammars from their classpath sources
+     * @return Grammars the freshly compiled parsers
+     * @throws IOException if a grammar resource cannot be read
+     * @throws UnableToParseException if a grammar resource is not a valid grammar
+     */
+    private static Grammars compileGrammars() throws IOException, UnableToParseException {
+        Parser<HeaderGrammar> headerParser = GrammarCompiler.compile(
+                readResource(HEADER_GRAMMAR), HeaderGrammar.ROOT);
+        Parser<ABCGrammar> bodyParser = GrammarCompiler.compile(
+                readResource(BODY_GRAMMAR), ABCGrammar.ROOT);
+        return new Grammars(headerParser, bodyParser);
+    }
+    
+    /**
+     * Deserializes the parsers written by writePrecompiledGrammars
+     * @return Grammars the precompiled parsers, or null if the resource is missing
+     *         or was written by an incompatible version of the parser classes
+     * @throws IOException if the resource exists but cannot be read
+     */
+    @SuppressWarnings("unchecked")
+    private static Grammars readPrecompiledGrammars() throws IOException {
+        InputStream resource = MusicParser.class.getResourceAsStream(PRECOMPILED_GRAMMARS);
+        if (resource == null)
+            return null;
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(resource))) {
+            Parser<HeaderGrammar> headerParser = (Parser<HeaderGrammar>) in.readObject();
+            Parser<ABCGrammar> bodyParser = (Parser<ABCGrammar>) in.readObject();
+            return new Grammars(headerParser, bodyParser);
+        } catch (ClassNotFoundException | InvalidClassException | ClassCastException e) {
+            //stale resource, fall back to compiling the grammar sources
+            return null;
+        }
+    }
+    
+    /**
+     * Compiles both grammars from their classpath sources and serializes them in the
+     * form read back by the first parse, see GrammarPrecompiler
+     * @param out stream to write the serialized parsers to
+     * @throws IOException if a grammar resource cannot be read or the parsers cannot be serialized
+     * @throws UnableToParseException if a grammar resource is not a valid grammar
+     */
+    static void writePrecompiledGrammars(OutputStream out) throws IOException, UnableToParseException {
+        Grammars compiled = compileGrammars();
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+        objects.writeObject(compiled.headerParser);
+        objects.writeObject(compiled.bodyParser);
+        objects.flush();
+    }
+    
+    /**
+     * Helper method, reads a classpath resource stored next to this class
+     * @param name resource name relative to this package
+     * @return String the resource contents decoded as UTF-8
+     * @throws IOException if the resource is missing or cannot be read
+     */
+    static String readResource(String name) throws IOException {
+        InputStream resource = MusicParser.class.getResourceAsStream(name);
+        if (resource == null)
+            throw new FileNotFoundException("Missing classpath resource " + name);
+        try (InputStream in = resource) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                bytes.write(buffer, 0, read);
+            return new String(bytes.toByteArray(), "UTF-8");
+        }
+    }
     
     /**
      * Helper method, returns the part of the String corresponding to the header of the piece
@@ -91,35 +859,114 @@ public class MusicParser {
      * @return String the header of the music piece
      */
     static String getHeader(String music) {
-        Pattern headerPattern = Pattern.compile("(?m)(^.+$\\s+)+K:.+$");
-        Matcher matcher = headerPattern.matcher(music);
-        if(matcher.find()) {
-            String header = matcher.group(0);
-            return header;  
-        } else
-            throw new RuntimeException("Could not split header");
+        return getHeader(music, findHeaderEnd(music));
+    }
+    
+    /**
+     * Helper method, returns the header of the piece given where it ends
+     * @param music a piece of music in valid abc notation
+     * @param headerEnd offset of the end of the header, as found by findHeaderEnd
+     * @return String the header of the music piece, without any blank lines before it
+     */
+    static String getHeader(CharSequence music, int headerEnd) {
+        int headerStart = 0;
+        while (headerStart < headerEnd && isLineBreak(music.charAt(headerStart)))
+            headerStart++;
+        return music.subSequence(headerStart, headerEnd).toString();
+    }
+    
+    /**
+     * Helper method, finds the boundary between the header and the body in a single
+     * sweep over the lines of the music. The header ends with the first "K:" field line.
+     * @param music a piece of music in valid abc notation
+     * @return int offset of the end of the key field line, before its line break
+     * @throws RuntimeException if the music has no key field
+     */
+    static int findHeaderEnd(CharSequence music) {
+        int length = music.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && !isLineBreak(music.charAt(lineEnd)))
+                lineEnd++;
+            
+            //the key field needs a value after "K:"
+            if (lineEnd - lineStart > 2 && music.charAt(lineStart) == 'K' && music.charAt(lineStart + 1) == ':')
+                return lineEnd;
+            lineStart = lineEnd + 1;
+        }
+        throw new RuntimeException("Could not split header");
+    }
+    
+    /**
+     * @param c a character of the music
+     * @return true iff c ends a line
+     */
+    private static boolean isLineBreak(char c) {
+        return c == '\n' || c == '\r';
     }
     
     /**
      * Helper method, turns a file into a string
      * @param file
      * @return String file as a String
-     * @throws FileNotFoundException 
+     * @throws IOException if the file cannot be read
      */
-    static String fileToString(File file) {
-        Scanner scanner;
-        String content = "";
-        try {
-            //scan the whole file as one String
-            scanner = new Scanner(file);
-            scanner.useDelimiter("\\Z");
-            content = scanner.next();
-            scanner.close();
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException("File not found");
+    static String fileToString(File file) throws IOException {
+        return readMusic(file.toPath()).toString();
+    }
+    
+    /**
+     * Helper method, decodes a file into characters, memory-mapping it if it is
+     * at least MAPPED_THRESHOLD bytes long
+     * @param file abc file to read
+     * @return CharBuffer the contents of the file, positioned at its start
+     * @throws IOException if the file cannot be read
+     */
+    static CharBuffer readMusic(Path file) throws IOException {
+        return readMusic(file, Files.size(file) >= MAPPED_THRESHOLD);
+    }
+    
+    /**
+     * Helper method, decodes a file into characters using the platform charset
+     * @param file abc file to read
+     * @param mapped true to decode from a memory-mapped view of the file instead of reading it onto the heap first
+     * @return CharBuffer the contents of the file, positioned at its start
+     * @throws IOException if the file cannot be read or is too large to map
+     */
+    static CharBuffer readMusic(Path file, boolean mapped) throws IOException {
+        ByteBuffer bytes;
+        if (mapped) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException("Too large to map: " + file);
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } else {
+            bytes = ByteBuffer.wrap(Files.readAllBytes(file));
         }
-        
-        return content;
+        return Charset.defaultCharset().decode(bytes);
+    }
+    
+    /**
+     * Helper method, decodes part of a file into characters using the platform charset
+     * @param file abc file to read
+     * @param offset byte offset to start reading at
+     * @param length number of bytes to read
+     * @return CharBuffer the decoded bytes, positioned at their start
+     * @throws IOException if the file cannot be read or ends before offset + length
+     */
+    static CharBuffer readMusic(Path file, long offset, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offset + bytes.position()) == -1)
+                    throw new EOFException("Unexpected end of " + file + " at offset " + (offset + bytes.position()));
+            }
+        }
+        bytes.flip();
+        return Charset.defaultCharset().decode(bytes);
     }
     
     
@@ -127,41 +974,91 @@ public class MusicParser {
      * Helper method, concatenates all the music segments of voiceName into one String
      * @param music a piece of music in valid abc notation
      * @param voiceName , empty iff there is only one voice
-     * @return List<String> a list with the voiceName segments as a single String
+     * @return String the voiceName segments as a single String
      */
     static String getVoice(String music, String voiceName) {
-        String body = music.replaceFirst("(?m)(^.+$\\s+)+K:.+$", ""); //remove the header
-        
-        Scanner scanner = new Scanner(body);
+        return splitVoices(music, findHeaderEnd(music), Collections.singletonList(voiceName))
+                .get(voiceName).toString();
+    }
+    
+    /**
+     * Helper method, reads the body once and concatenates the music segments of every voice,
+     * routing each line to the voice named by the last "V:" line before it
+     * @param music a piece of music in valid abc notation
+     * @param headerEnd offset of the end of the header, as found by findHeaderEnd
+     * @param voiceNames names of the voices to extract, a single empty name iff there is only one voice
+     * @return Map<String, CharSequence> each voice name mapped to its segments as a single sequence,
+     *         in the order of voiceNames
+     */
+    static Map<String, CharSequence> splitVoices(CharSequence music, int headerEnd, List<String> voiceNames) {
+        return splitVoices(music, headerEnd, voiceNames, null);
+    }
+    
+    /**
+     * Helper method, splits the body into voices as splitVoices(music, headerEnd, voiceNames) does,
+     * listing where each line copied into a voice came from
+     * @param music a piece of music in valid abc notation
+     * @param headerEnd offset of the end of the header, as found by findHeaderEnd
+     * @param voiceNames names of the voices to extract, a single empty name iff there is only one voice
+     * @param lines receives a VoiceLine for each line copied into a voice, in the order of the music; or null
+     * @return Map<String, CharSequence> each voice name mapped to its segments as a single sequence,
+     *         in the order of voiceNames
+     */
+    static Map<String, CharSequence> splitVoices(CharSequence music, int headerEnd, List<String> voiceNames,
+            List<VoiceLine> lines) {
+        //size each buffer for an even share of the body so that appending rarely has to grow it
+        int expectedLength = (music.length() - headerEnd) / Math.max(1, voiceNames.size()) + 16;
+        Map<String, StringBuilder> voices = new LinkedHashMap<>();
+        for (String voiceName : voiceNames)
+            voices.put(voiceName, new StringBuilder(expectedLength));
         
-        //create regex for detecting whether the following lines are of the voice
-        String thisVoiceTag = ("V:\\s*" + voiceName + "\\s*" );
-        String otherVoiceTag = ("V:\\s*.+");
+        //lines before the first voice tag belong to the unnamed voice, if there is only one voice
+        StringBuilder voice = voices.get("");
+        int voiceIndex = voiceNames.indexOf("");
         
-        //will start out true if there is only one voice, false otherwise
-        boolean isVoice = voiceName.isEmpty();
-        String voice = "";
-        //iterate through all lines of the body, adding the voice lines into one line
-        while (scanner.hasNext()) {
-            String line = scanner.nextLine();
-            //if the line is empty or a comment, skip it
-            while(line.isEmpty() || line.startsWith("%"))
-                line = scanner.nextLine();
+        //iterate through all lines of the body, copying each line straight from the music
+        //into the voice it belongs to
+        int length = music.length();
+        int lineStart = headerEnd;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && !isLineBreak(music.charAt(lineEnd)))
+                lineEnd++;
             
-            if (line.matches(thisVoiceTag)) { 
-                //lines after "V: voiceName" should be read as this voice
-                isVoice = true; 
-            } else if (line.matches(otherVoiceTag)) {
-                //lines after "V: otherVoice" should not be read as this voice
-                isVoice = false; 
-            } else if (isVoice) {
-                voice = voice.concat(line);
-            } else {
-                continue;
-            }  
+            //if the line is empty or a comment, skip it
+            if (lineEnd > lineStart && music.charAt(lineStart) != '%') {
+                if (lineEnd - lineStart >= 2 && music.charAt(lineStart) == 'V' && music.charAt(lineStart + 1) == ':') {
+                    //lines after "V: voiceName" should be read as that voice, or dropped if it is not extracted
+                    String voiceName = music.subSequence(lineStart + 2, lineEnd).toString().trim();
+                    voice = voices.get(voiceName);
+                    if (lines != null)
+                        voiceIndex = voiceNames.indexOf(voiceName);
+                } else if (voice != null) {
+                    if (lines != null)
+                        lines.add(new VoiceLine(lineStart, lineEnd, voiceIndex, voice.length()));
+                    voice.append(music, lineStart, lineEnd);
+                }
+            }
+            //the \n of a \r\n pair is read as an empty line and skipped
+            lineStart = lineEnd + 1;
+        }
+        return Collections.<String, CharSequence>unmodifiableMap(voices);
+    }
+    
+    /**
+     * Parses the header of a piece with the header grammar
+     * @param header the header of the piece, as cut out by getHeader
+     * @return ParseContext of the Header with the information given in the header
+     * @throws IllegalArgumentException if the header is invalid
+     */
+    static ParseContext parseHeader(String header) {
+        try {
+            return buildContext(getGrammars().headerParser.parse(header), header, null);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot parse!", e);
+        } catch (UnableToParseException e) {
+            throw new IllegalArgumentException("Cannot parse!", e);
         }
-        scanner.close();
-        return voice;
     }
     
     /**
@@ -170,105 +1067,139 @@ public class MusicParser {
      * @param fullHeader the full text of the header
      * @return a Header with the information given in this abc file
      */
-    private static Header buildHeader(ParseTree<HeaderGrammar> headerTree, String fullHeader) {
+    static Header buildHeader(ParseTree<HeaderGrammar> headerTree, String fullHeader) {
+        return buildContext(headerTree, fullHeader, null).header;
+    }
+    
+    /**
+     * Creates a header from the header tree, along with the state every voice derives from it
+     * @param headerTree parsed tree for the header
+     * @param fullHeader the full text of the header
+     * @return ParseContext of a Header with the information given in this abc file
+     */
+    static ParseContext buildContext(ParseTree<HeaderGrammar> headerTree, String fullHeader) {
+        return buildContext(headerTree, fullHeader, null);
+    }
+    
+    /**
+     * Creates a header from the header tree, recording the setters called on its builder. The unit
+     * note length and the beat length are kept as the exact fractions written in L: and Q:.
+     * @param headerTree parsed tree for the header
+     * @param fullHeader the full text of the header
+     * @param recipe PieceRecipe recording the setters, or null
+     * @return ParseContext of a Header with the information given in this abc file
+     */
+    private static ParseContext buildContext(ParseTree<HeaderGrammar> headerTree, String fullHeader, PieceRecipe recipe) {
         
         HeaderBuilder hBuilder = new HeaderBuilder();
+        //packed L: and Q: fractions, as written
+        long exactLength = ParseContext.UNWRITTEN;
+        long exactBeatLength = ParseContext.UNWRITTEN;
         
         hBuilder.setFullHeader(fullHeader);
+        if (recipe != null)
+            recipe.setFullHeader(fullHeader);
         
-        for(ParseTree<HeaderGrammar> tree : headerTree.children()) {
+        for(TreeView<HeaderGrammar> tree : headerView(headerTree).children()) {
             switch(tree.getName()) {
             
             case TITLE:
                 //Get name from title tree
                 String titleName = tree.childrenByName(HeaderGrammar.NAME).get(0).getContents();
                 hBuilder.setTitle(titleName);
+                if (recipe != null)
+                    recipe.setTitle(titleName);
                 break;
             case OPTION:
                 //Nested switch statement to parse different options
                 //author, meter, length, tempo, and voice;
-                ParseTree<HeaderGrammar> optionTree = tree.children().get(0);
+                TreeView<HeaderGrammar> optionTree = tree.first("Option did not have expected children");
                 switch(optionTree.getName()) {
                 
                 case AUTHOR:
                     //Get name from author tree
                     String composer = optionTree.childrenByName(HeaderGrammar.NAME).get(0).getContents();
                     hBuilder.setComposer(composer);
+                    if (recipe != null)
+                        recipe.setComposer(composer);
                     break;
                 case METER:
                     int meterNum, meterDen;
                     
                     //account for special meter
-                    if(optionTree.childrenByName(HeaderGrammar.FRACTION).size() == 0) {
-                        ParseTree<HeaderGrammar> specialTree = optionTree.childrenByName(HeaderGrammar.SPECIALMETER).get(0);
+                    if(!optionTree.has(HeaderGrammar.FRACTION)) {
+                        TreeView<HeaderGrammar> specialTree = optionTree.childrenByName(HeaderGrammar.SPECIALMETER).get(0);
                         if(specialTree.getContents().equals("C"))
                             meterNum = meterDen = 4;
                         else
                             meterNum = meterDen = 2;
                     } else {
                         // Get meter from tree by getting the fraction,
-                        ParseTree<HeaderGrammar> fractionTree = optionTree.childrenByName(HeaderGrammar.FRACTION).get(0);
+                        List<TreeView<HeaderGrammar>> meterIntegers = fractionIntegers(optionTree);
 
                         // then finding the numerator and denominator separately
-                        String meterNumString = fractionTree.childrenByName(HeaderGrammar.INTEGER).get(0).getContents();
-                        String meterDenString = fractionTree.childrenByName(HeaderGrammar.INTEGER).get(1).getContents();
+                        String meterNumString = meterIntegers.get(0).getContents();
+                        String meterDenString = meterIntegers.get(1).getContents();
                         meterNum = Integer.parseInt(meterNumString);
                         meterDen = Integer.parseInt(meterDenString);
                     }
                     
                     hBuilder.setMeter(meterNum, meterDen);
+                    if (recipe != null)
+                        recipe.setMeter(meterNum, meterDen);
                     break;
                 case LENGTH:
                     //Get length double from length tree by getting the fraction, 
-                    ParseTree<HeaderGrammar> fractionTree = optionTree.childrenByName(HeaderGrammar.FRACTION).get(0);
+                    List<TreeView<HeaderGrammar>> lengthIntegers = fractionIntegers(optionTree);
                     
                     //then finding the numerator and denominator separately
-                    String lengthNumString = fractionTree.childrenByName(HeaderGrammar.INTEGER).get(0).getContents();
-                    String lengthDenString = fractionTree.childrenByName(HeaderGrammar.INTEGER).get(1).getContents();
+                    String lengthNumString = lengthIntegers.get(0).getContents();
+                    String lengthDenString = lengthIntegers.get(1).getContents();
                     int lengthNum = Integer.parseInt(lengthNumString);
                     int lengthDen = Integer.parseInt(lengthDenString);
                     
                     double length = lengthNum / (double)lengthDen;
+                    exactLength = Durations.of(lengthNum, lengthDen);
                     hBuilder.setLength(length);
+                    if (recipe != null)
+                        recipe.setLength(length);
                     break;
                 case TEMPO:
                     //get default beat length from tempo tree
-                    ParseTree<HeaderGrammar> fraction = optionTree.childrenByName(HeaderGrammar.FRACTION).get(0);
-                    String beatNumString = fraction.childrenByName(HeaderGrammar.INTEGER).get(0).getContents();
-                    String beatDenString = fraction.childrenByName(HeaderGrammar.INTEGER).get(1).getContents();
+                    List<TreeView<HeaderGrammar>> beatIntegers = fractionIntegers(optionTree);
+                    String beatNumString = beatIntegers.get(0).getContents();
+                    String beatDenString = beatIntegers.get(1).getContents();
                     int beatNum = Integer.parseInt(beatNumString);
                     int beatDen = Integer.parseInt(beatDenString);
                     hBuilder.setBeatLength(beatNum / (double)beatDen);
+                    exactBeatLength = Durations.of(beatNum, beatDen);
+                    if (recipe != null)
+                        recipe.setBeatLength(beatNum / (double)beatDen);
                     
                     //Get tempo int from tempo tree
                     String tempoString = optionTree.childrenByName(HeaderGrammar.INTEGER).get(0).getContents();
                     int tempo = Integer.parseInt(tempoString);
                     hBuilder.setTempo(tempo);
+                    if (recipe != null)
+                        recipe.setTempo(tempo);
                     break;
                 case VOICE:
                     //Get voice name from tree
                     String voiceName = optionTree.childrenByName(HeaderGrammar.VOICENAME).get(0).getContents();
                     hBuilder.addVoice(voiceName);
+                    if (recipe != null)
+                        recipe.addVoice(voiceName);
                     break;
                 default:
                     throw new RuntimeException("Should never get here");
                 }
                 break;
             case KEY:
-                String key = tree.getContents();
-                int keyInt, keyIndex;
-                
                 //Convert key into an int based on how many sharps or flats it has
-                if(MAJORKEYS.contains(key))
-                    keyIndex = MAJORKEYS.indexOf(key);
-                else if (MINORKEYS.contains(key)) 
-                    keyIndex = MINORKEYS.indexOf(key);
-                else
-                    throw new RuntimeException("Key is unknown");
-                
-                //convert 0 - 14 range to -7 - 7 range where -7 is 7 flats and 7 is 7 sharps
-                keyInt = keyIndex - 7;
-                hBuilder.setKey(keyInt);
+                int key = keySignature(tree.getContents());
+                hBuilder.setKey(key);
+                if (recipe != null)
+                    recipe.setKey(key);
                 break;
             case WHITESPACE:
                 break;
@@ -277,229 +1208,751 @@ public class MusicParser {
             }
         }
         
-        return hBuilder.createHeader();
+        return new ParseContext(hBuilder.createHeader(), exactLength, exactBeatLength);
+    }
+    
+    /**
+     * Helper method, returns the numerator and denominator of the fraction of a header option
+     * @param optionTree view of an option with a FRACTION child
+     * @return List<TreeView<HeaderGrammar>> the INTEGER children of the fraction
+     */
+    private static List<TreeView<HeaderGrammar>> fractionIntegers(TreeView<HeaderGrammar> optionTree) {
+        return optionTree.childrenByName(HeaderGrammar.FRACTION).get(0).childrenByName(HeaderGrammar.INTEGER);
     }
     
     /**
-     * Determines the music AST from a tree
+     * @param tree ParseTree<HeaderGrammar> of the header
+     * @return TreeView<HeaderGrammar> of the tree and every node below it, without whitespace
+     */
+    private static TreeView<HeaderGrammar> headerView(ParseTree<HeaderGrammar> tree) {
+        return TreeView.of(tree, HeaderGrammar.WHITESPACE);
+    }
+    
+    /**
+     * @param tree ParseTree<ABCGrammar> of a voice
+     * @return TreeView<ABCGrammar> of the tree and every node below it, without whitespace, built once
+     *         and handed down to every builder of the voice
+     */
+    private static TreeView<ABCGrammar> bodyView(ParseTree<ABCGrammar> tree) {
+        return TreeView.of(tree, ABCGrammar.WHITESPACE);
+    }
+    
+    /**
+     * Determines the music AST from a tree. The tree is walked with an explicit stack of
+     * frames rather than by recursion, so deep trees do not deepen the call stack.
      * @param voiceTree ParseTree<ABCGrammar> derived from the parse method
      * @return MusicPiece AST for the ParseTree
      */
-    private static MusicSequence buildVoice(ParseTree<ABCGrammar> tree, Header header) {
+    static MusicSequence buildVoice(ParseTree<ABCGrammar> tree, ParseContext context) {
+        return buildVoice(tree, context, null);
+    }
+    
+    /**
+     * Determines the music AST from a tree, recording the factory calls that build it
+     * @param voiceTree ParseTree<ABCGrammar> derived from the parse method
+     * @param context ParseContext of the piece
+     * @param recipe PieceRecipe recording the calls, or null
+     * @return MusicPiece AST for the ParseTree
+     */
+    private static MusicSequence buildVoice(ParseTree<ABCGrammar> tree, ParseContext context, PieceRecipe recipe) {
+        //accidentals are tracked per voice, as measures are built in order
+        AccidentalTable accidentals = new AccidentalTable();
+        TreeView<ABCGrammar> root = bodyView(tree);
+        if (root.getName() == ABCGrammar.MEASURE)
+            return buildMeasure(root, context, accidentals, recipe);
+        
+        Deque<VoiceFrame> stack = new ArrayDeque<>();
+        stack.push(new VoiceFrame(root));
+        while (true) {
+            VoiceFrame frame = stack.peek();
+            if (frame.built.size() < frame.parts.size()) {
+                //build the next part of this node, measures directly and other nodes on a new frame
+                TreeView<ABCGrammar> part = frame.parts.get(frame.built.size());
+                if (part.getName() == ABCGrammar.MEASURE)
+                    frame.built.add(buildMeasure(part, context, accidentals, recipe));
+                else
+                    stack.push(new VoiceFrame(part));
+            } else {
+                //every part is built, combine them and hand the result to the parent
+                stack.pop();
+                MusicSequence sequence = frame.combine(recipe);
+                if (stack.isEmpty())
+                    return sequence;
+                stack.peek().built.add(sequence);
+            }
+        }
+    }
+    
+    /**
+     * A node of the voice tree on the stack of buildVoice, holding the children it is
+     * built from and the sequences built from them so far
+     */
+    private static class VoiceFrame {
+        private final TreeView<ABCGrammar> tree;
+        //children to build, in the order their sequences are combined
+        private final List<TreeView<ABCGrammar>> parts = new ArrayList<>();
+        private final List<MusicSequence> built = new ArrayList<>();
+        //for a repeat, index in parts of the first second ending
+        private int secondEndings = -1;
         
-            switch(tree.getName()) { 
+        private VoiceFrame(TreeView<ABCGrammar> tree) {
+            this.tree = tree;
             
+            switch(tree.getName()) {
             
             case ROOT:
-                //composed of major sections, return all sections joined together in order
-                List<ParseTree<ABCGrammar>> majorSections = tree.childrenByName(ABCGrammar.MAJORSECTION);
-                MusicSequence voice = buildVoice(majorSections.get(0), header);
-                for (int i = 1; i < majorSections.size(); i++) {
-                    voice = MusicSequence.join(voice, buildVoice(majorSections.get(i), header));
-                }
-                return voice;
-                
+                //composed of major sections, joined together in order
+                parts.addAll(tree.childrenByName(ABCGrammar.MAJORSECTION));
+                break;
                 
             case MAJORSECTION:
-                //composed of a repeat in the beginning and/or a sequence, return both parts joined together in order
-                List<ParseTree<ABCGrammar>> repeats = tree.childrenByName(ABCGrammar.REPEAT);
-                List<ParseTree<ABCGrammar>> sequences = tree.childrenByName(ABCGrammar.SEQUENCE);
-                if (repeats.size() == 0) {
-                    //if there is no repeat there must be a sequence
-                    return buildVoice(sequences.get(0), header);
-                } else if (sequences.size() == 0) {
-                    //if there is no sequence there must be a repeat
-                    return buildVoice(repeats.get(0), header);
-                } else {
-                    //repeat and sequence
-                    return MusicSequence.join(buildVoice(repeats.get(0), header), buildVoice(sequences.get(0), header));
-                }
-                        
+                //composed of a repeat in the beginning and/or a sequence, joined together in order
+                List<TreeView<ABCGrammar>> repeats = tree.childrenByName(ABCGrammar.REPEAT);
+                List<TreeView<ABCGrammar>> sequences = tree.childrenByName(ABCGrammar.SEQUENCE);
+                if (repeats.size() > 0)
+                    parts.add(repeats.get(0));
+                if (sequences.size() > 0)
+                    parts.add(sequences.get(0));
+                if (parts.isEmpty())
+                    throw new RuntimeException("Major section did not have expected children");
+                break;
                 
             case SEQUENCE:
-                //composed of blocks, return all blocks joined together in order
-                List<ParseTree<ABCGrammar>> blocks = tree.childrenByName(ABCGrammar.BLOCK);
-                MusicSequence concatBlocks = buildVoice(blocks.get(0), header);
-                for (int i = 1; i < blocks.size(); i++) {
-                    concatBlocks = MusicSequence.join(concatBlocks, buildVoice(blocks.get(i), header));
-                }
-                return concatBlocks;
+                //composed of blocks, joined together in order
+                parts.addAll(tree.childrenByName(ABCGrammar.BLOCK));
+                break;
                 
             case BLOCK:
                 //can be a repeat or a measure
-                for (ParseTree<ABCGrammar> block : tree.children()) {
-                    if (!block.getName().equals(ABCGrammar.WHITESPACE)) {//exclude whitespace children
-                        return buildVoice(block, header);
-                    }
-                }
-                throw new RuntimeException("Block did not have expected children");
+                parts.add(tree.first("Block did not have expected children"));
+                break;
                 
             case REPEAT:
                 //has a start, and possibly two different endings
-                //concatenate as start end1? start end2?
-                for (ParseTree<ABCGrammar> start : tree.children()) {
-                    if (start.getName().equals(ABCGrammar.START)) {
-                        MusicSequence repeat = buildVoice(start, header);
-                        for (ParseTree<ABCGrammar> end1 : tree.children()) {
-                            if (end1.getName().equals(ABCGrammar.END1)) {
-                                repeat = MusicSequence.join(repeat, buildVoice(end1, header));
-                            }
-                        }
-                        repeat = MusicSequence.join(repeat, buildVoice(start, header));
-                        for (ParseTree<ABCGrammar> end2 : tree.children()) {
-                            if (end2.getName().equals(ABCGrammar.END2)) {
-                                repeat = MusicSequence.join(repeat, buildVoice(end2, header));
-                            }
-                        }
-                        return repeat;
-                    }
-                }
-                throw new RuntimeException("Repeat did not have expected children");
+                //concatenated as start end1? start end2? by combine
+                List<TreeView<ABCGrammar>> starts = tree.childrenByName(ABCGrammar.START);
+                if (starts.size() == 0)
+                    throw new RuntimeException("Repeat did not have expected children");
+                parts.add(starts.get(0));
+                parts.addAll(tree.childrenByName(ABCGrammar.END1));
+                secondEndings = parts.size();
+                parts.addAll(tree.childrenByName(ABCGrammar.END2));
+                break;
                 
             case START:
                 //has a sequence
-                return buildVoice(tree.childrenByName(ABCGrammar.SEQUENCE).get(0), header);
+                parts.add(tree.childrenByName(ABCGrammar.SEQUENCE).get(0));
+                break;
                 
             case END1:
                 //has a sequence
-                return buildVoice(tree.childrenByName(ABCGrammar.SEQUENCE).get(0), header);
+                parts.add(tree.childrenByName(ABCGrammar.SEQUENCE).get(0));
+                break;
                 
             case END2:
                 //has a block
-                return buildVoice(tree.childrenByName(ABCGrammar.BLOCK).get(0), header);
+                parts.add(tree.childrenByName(ABCGrammar.BLOCK).get(0));
+                break;
                 
-            case MEASURE:
-                //has one or more elements
-                List<NoteElement> notes = new ArrayList<>();
-                for (ParseTree<ABCGrammar> child : tree.childrenByName(ABCGrammar.ELEMENT)) {
-                    Map<String, String> accidentals = new HashMap<>();
-                    notes.add(buildElement(child, header, accidentals));
-                    
-                }
-                MusicSequence measure = MusicSequence.measure(notes);
-                return measure;
             default:
                 throw new RuntimeException("Should not reach default clause");
             }
+        }
+        
+        /**
+         * @return List<TreeView<ABCGrammar>> the parts of this node in the order they are played,
+         *         with the start of a repeat played again before its second endings
+         */
+        private List<TreeView<ABCGrammar>> playOrder() {
+            if (tree.getName() != ABCGrammar.REPEAT)
+                return parts;
+            return repeatLayout(parts, secondEndings);
+        }
+        
+        /**
+         * @param recipe PieceRecipe recording the call that combines the parts, or null
+         * @return MusicSequence this node built from the sequences of all its parts
+         */
+        private MusicSequence combine(PieceRecipe recipe) {
+            if (tree.getName() != ABCGrammar.REPEAT) {
+                if (recipe != null)
+                    recipe.join(built.size());
+                return joinAll(built);
+            }
+            if (recipe != null)
+                recipe.repeat(built.size(), secondEndings);
             
-            
+            return joinAll(repeatLayout(built, secondEndings));
+        }
+    }
+    
+    //version of the pieces built from a source, stored with each piece by PieceStore. Stored pieces are
+    //built again by replaying the calls that built them, which plays repeats out with repeatLayout itself;
+    //raise it whenever the calls recorded for the same source change, as when notes are resolved differently
+    static final int BUILD_VERSION = 4;
+    
+    /**
+     * Helper method, lays out the parts of a repeat in the order they are played: the start, the first
+     * endings, the start again, then the second endings. The start is immutable, so it is built once
+     * and the same part is played twice. Every engine, and the replay of a stored piece, plays repeats
+     * out through this method.
+     * @param parts the start of the repeat, then its first endings, then its second endings
+     * @param secondEndings index in parts of the first second ending, parts.size() if there is none
+     * @return List<T> the parts in the order they are played
+     * @throws IllegalArgumentException if secondEndings is not between 1 and parts.size()
+     */
+    static <T> List<T> repeatLayout(List<T> parts, int secondEndings) {
+        if (secondEndings < 1 || secondEndings > parts.size())
+            throw new IllegalArgumentException("Second endings out of range: " + secondEndings);
+        List<T> order = new ArrayList<>(parts.size() + 1);
+        order.addAll(parts.subList(0, secondEndings));
+        order.add(parts.get(0));
+        order.addAll(parts.subList(secondEndings, parts.size()));
+        return order;
+    }
+    
+    /**
+     * Determines the music AST of a single measure
+     * @param tree TreeView<ABCGrammar> of a MEASURE
+     * @param context ParseContext of the piece
+     * @param accidentals AccidentalTable of the voice, reset for this measure
+     * @param recipe PieceRecipe recording the factory calls, or null
+     * @return MusicSequence the measure
+     */
+    private static MusicSequence buildMeasure(TreeView<ABCGrammar> tree, ParseContext context, AccidentalTable accidentals,
+            PieceRecipe recipe) {
+        //has one or more elements, an accidental carries through the rest of the measure
+        accidentals.nextMeasure();
+        List<NoteElement> notes = new ArrayList<>();
+        for (TreeView<ABCGrammar> child : tree.childrenByName(ABCGrammar.ELEMENT)) {
+            notes.add(buildElement(child, context, accidentals, recipe));
+        }
+        if (recipe != null)
+            recipe.measure(notes.size());
+        MusicSequence measure = MusicSequence.measure(notes);
+        return measure;
+    }
+    
+    /**
+     * Accidentals written on notes earlier in the current measure, by pitch letter and octave,
+     * stored as the number of semitones they shift the note. Moving to the next measure forgets
+     * them all by bumping a measure counter instead of clearing the table. Octaves of any number
+     * of marks are tracked, those far from middle C in a map that is cleared with the measure.
+     */
+    static class AccidentalTable {
+        //octaves -MAX_OCTAVE to MAX_OCTAVE around middle C are tracked in the arrays
+        private static final int MAX_OCTAVE = 10;
+        private static final int OCTAVES = 2 * MAX_OCTAVE + 1;
+        
+        private final byte[] shifts = new byte[7 * OCTAVES];
+        //measure in which each slot of shifts was written, slots of earlier measures are unset
+        private final int[] writtenIn = new int[7 * OCTAVES];
+        private int measure = 1;
+        //accidentals written in this measure on octaves outside the arrays, by key, made when first needed
+        private Map<Long, Integer> farShifts = null;
+        
+        /**
+         * Forgets every accidental, at the start of a measure
+         */
+        void nextMeasure() {
+            measure++;
+            if (farShifts != null && !farShifts.isEmpty())
+                farShifts.clear();
+        }
+        
+        /**
+         * @param pitchLetter upper case pitch letter
+         * @param octave number of octaves higher or lower than middle C
+         * @return true iff an accidental was written on this pitch earlier in the measure
+         */
+        boolean contains(char pitchLetter, int octave) {
+            if (isFar(octave))
+                return farShifts != null && farShifts.containsKey(farKey(pitchLetter, octave));
+            return writtenIn[slot(pitchLetter, octave)] == measure;
+        }
         
+        /**
+         * @param pitchLetter upper case pitch letter
+         * @param octave number of octaves higher or lower than middle C
+         * @return int semitones of the accidental written on this pitch earlier in the measure
+         */
+        int get(char pitchLetter, int octave) {
+            if (isFar(octave)) {
+                Integer shift = farShifts == null ? null : farShifts.get(farKey(pitchLetter, octave));
+                return shift == null ? 0 : shift;
+            }
+            return shifts[slot(pitchLetter, octave)];
+        }
+        
+        /**
+         * Records an accidental written on a note, for the rest of the measure
+         * @param pitchLetter upper case pitch letter
+         * @param octave number of octaves higher or lower than middle C
+         * @param shift semitones of the accidental, from -2 to 2
+         */
+        void put(char pitchLetter, int octave, int shift) {
+            if (isFar(octave)) {
+                if (farShifts == null)
+                    farShifts = new HashMap<>();
+                farShifts.put(farKey(pitchLetter, octave), shift);
+                return;
+            }
+            int slot = slot(pitchLetter, octave);
+            shifts[slot] = (byte) shift;
+            writtenIn[slot] = measure;
+        }
+        
+        /**
+         * @param octave number of octaves higher or lower than middle C
+         * @return true iff the octave is tracked in the map rather than the arrays
+         */
+        private static boolean isFar(int octave) {
+            return octave < -MAX_OCTAVE || octave > MAX_OCTAVE;
+        }
         
+        /**
+         * @param pitchLetter upper case pitch letter
+         * @param octave number of octaves higher or lower than middle C, within MAX_OCTAVE of it
+         * @return int index of the pitch in the arrays
+         */
+        private static int slot(char pitchLetter, int octave) {
+            return (octave + MAX_OCTAVE) * 7 + (pitchLetter - 'A');
+        }
         
+        /**
+         * @param pitchLetter upper case pitch letter
+         * @param octave number of octaves higher or lower than middle C
+         * @return Long key of the pitch in the map
+         */
+        private static Long farKey(char pitchLetter, int octave) {
+            return ((long) octave << 16) | pitchLetter;
+        }
     }
     
     /**
-     * Helper method, returns note elements from ParseTrees corresponding to NoteElements, taking into 
-     * account the length, key, and a map of accidentals previously found in the measure
-     * @param elementTree ParseTree<ABCGrammar> corresponding to a note element
-     * @param header Header 
-     * @param accidentalMap Map<String pitch (Ex: a'') , String accidental (Ex: "^")>
-     * @return NoteElement
+     * Determines the compact events of a voice from a tree, expanding its repeats in play order
+     * @param tree ParseTree<ABCGrammar> of a voice
+     * @param context ParseContext of the piece
+     * @return VoiceEvents the events of the voice
+     */
+    static VoiceEvents buildEvents(ParseTree<ABCGrammar> tree, ParseContext context) {
+        EventWriter writer = new EventWriter(context);
+        Deque<TreeView<ABCGrammar>> pending = new ArrayDeque<>();
+        pending.push(bodyView(tree));
+        while (!pending.isEmpty()) {
+            TreeView<ABCGrammar> node = pending.pop();
+            if (node.getName() == ABCGrammar.MEASURE) {
+                writer.measure(node);
+            } else {
+                //visit the parts of the node next, first part on top
+                List<TreeView<ABCGrammar>> order = new VoiceFrame(node).playOrder();
+                for (int i = order.size() - 1; i >= 0; i--)
+                    pending.push(order.get(i));
+            }
+        }
+        return writer.events.build(writer.tick(writer.position));
+    }
+    
+    /**
+     * Appends the note events of measures to a voice, keeping track of the current position
      */
-    private static NoteElement buildElement(ParseTree<ABCGrammar> tree, Header header, Map<String, String> accidentalMap) {
+    private static class EventWriter {
+        private final VoiceEvents.Builder events = new VoiceEvents.Builder();
+        private final AccidentalTable accidentals = new AccidentalTable();
+        private final ParseContext context;
+        //exact position in beats at which the next element starts
+        private long position = Durations.ZERO;
+        //number of groups handed out so far
+        private int groups = 0;
         
-       
-            switch(tree.getName()) {
-            
-            case ELEMENT:
-                //can be a rest, note, chord, or tuplet 
-                for(ParseTree<ABCGrammar> noteElement : tree.children()) {
-                    if (!noteElement.getName().equals(ABCGrammar.WHITESPACE)) { //exclude whitespace children
-                        return buildElement(noteElement, header, accidentalMap);
+        private EventWriter(ParseContext context) {
+            this.context = context;
+        }
+        
+        /**
+         * Appends the events of a measure
+         * @param tree TreeView<ABCGrammar> of a MEASURE
+         */
+        private void measure(TreeView<ABCGrammar> tree) {
+            accidentals.nextMeasure();
+            for (TreeView<ABCGrammar> child : tree.childrenByName(ABCGrammar.ELEMENT)) {
+                TreeView<ABCGrammar> element = child.first("Element should have a none-whitespace child");
+                int group = groups++;
+                if (element.getName() == ABCGrammar.TUPLET) {
+                    //the notes of a tuplet are played faster or slower depending on the kind of tuplet
+                    TreeView<ABCGrammar> tupletChild = element.first("Tuplet should have a none-whitespace child");
+                    long scale = tupletScale(tupletChild.getName());
+                    for (TreeView<ABCGrammar> tupletElement : tupletChild.children()) {
+                        simpleElement(tupletElement, scale, group, accidentals);
                     }
+                } else {
+                    simpleElement(element, Durations.ONE, group, accidentals);
                 }
-                
+            }
+        }
+        
+        /**
+         * Appends the events of a rest, note or chord and moves past it
+         * @param tree TreeView<ABCGrammar> of a REST, NOTE or CHORD
+         * @param scale factor applied to the written durations
+         * @param group id of the events
+         * @param accidentals AccidentalTable of the accidentals written earlier in the measure
+         */
+        private void simpleElement(TreeView<ABCGrammar> tree, long scale, int group, AccidentalTable accidentals) {
+            switch(tree.getName()) {
+            
             case REST:
-                //can have duration, else set default duration
-                return NoteElement.rest(parseDuration(tree, header));
-                
+                position = Durations.add(position, Durations.multiply(parseBeats(tree, context.unitBeats), scale));
+                break;
                 
             case NOTE:
-                //must have pitch, can have accidental, duration
-                double noteDuration = parseDuration(tree, header);
-                String notePitch = tree.childrenByName(ABCGrammar.PITCH).get(0).getContents();
-                char[] pitchChars = notePitch.toCharArray();
-                int octave = 0; //number of octaves higher or lower than middle C
-                if (Character.isLowerCase(pitchChars[0])) {
-                    octave = pitchChars.length; // 1 + number of ['] characters
-                } else {
-                    octave = 1 - pitchChars.length; //number of [,] characters
-                }
-                char pitchLetter = Character.toUpperCase(pitchChars[0]); //pitch letter to be used by constructor
-                String noteAccidental = "="; //normal, no accidental
-                if (tree.childrenByName(ABCGrammar.ACCIDENTAL).size() == 1) { //if the note has an accidental
-                    noteAccidental = tree.childrenByName(ABCGrammar.ACCIDENTAL).get(0).getContents();
-                    accidentalMap.put(notePitch, noteAccidental); //this will notify future notes in the measure of the accidental
-                } else if (accidentalMap.containsKey(notePitch)) {
-                    //if a previous note in the measure with this pitch had an accidental
-                    noteAccidental = accidentalMap.get(notePitch);
-                } else { //modify accidental based on key
-                    int key = header.getKey();
-                    char[] sharpKeys = {'F', 'C', 'G', 'D', 'A', 'E', 'B'};
-                    char[] flatKeys = {'B', 'E', 'A', 'D', 'G', 'C', 'F'};
-                    if (key > 0) {
-                        for (int i = 0; i < key; i++) {
-                            if (pitchLetter == sharpKeys[i]) {
-                                noteAccidental = "^";
-                                break;
-                            }
-                        }  
-                    } else if (key < 0) {
-                        key = -1 * key;
-                            for (int i = 0; i < key; i++) {
-                                if (pitchLetter == flatKeys[i]) {
-                                    noteAccidental = "_";
-                                }
-                            }
-                    }
-                }
-                return NoteElement.note(octave, noteAccidental, pitchLetter, noteDuration);
-                
+                position = Durations.add(position, note(tree, scale, group, accidentals));
+                break;
                 
             case CHORD:
-                //has one or more notes
-                List<NoteElement> chordNotes = new ArrayList<>();
-                for (ParseTree<ABCGrammar> note : tree.childrenByName(ABCGrammar.NOTE)) {
-                    chordNotes.add(buildElement(note, header, accidentalMap));
-                }
-                return NoteElement.chord(chordNotes);
-                
-            case TUPLET:
-                List<NoteElement> tupletNotes = new ArrayList<>();
-                //this is the child of tuplet, in the grammar either a duplet, triplet, or quadruplet
-                ParseTree<ABCGrammar> tupletChild; 
-                for (ParseTree<ABCGrammar> child : tree.children()) {
-                    if (!child.getName().equals(ABCGrammar.WHITESPACE)) {//exclude whitespace children
-                        tupletChild = child;
-                        for (ParseTree<ABCGrammar> element : tupletChild.children()) {
-                            //the children of tupletChild are chords or notes
-                            if (!element.getName().equals(ABCGrammar.WHITESPACE)) { //exclude whitespace children
-                                tupletNotes.add(buildElement(element, header, accidentalMap));
-                            }
-                        }
-                        return NoteElement.tuplet(tupletNotes);
-                    }
+                //all notes start together, the chord lasts as long as its first note
+                long chordBeats = Durations.ZERO;
+                boolean first = true;
+                for (TreeView<ABCGrammar> note : tree.childrenByName(ABCGrammar.NOTE)) {
+                    long noteBeats = note(note, scale, group, accidentals);
+                    if (first)
+                        chordBeats = noteBeats;
+                    first = false;
                 }
-                throw new RuntimeException("Tuplet should have a none-whitespace child");
-                
+                position = Durations.add(position, chordBeats);
+                break;
                 
             default:
                 throw new RuntimeException("Should not reach default clause");
             }
+        }
         
+        /**
+         * Appends the event of a note starting at the current tick, without moving past it
+         * @param note TreeView<ABCGrammar> of a NOTE
+         * @param scale factor applied to the written duration
+         * @param group id of the event
+         * @param accidentals AccidentalTable of the accidentals written earlier in the measure
+         * @return long the exact duration of the note in beats
+         */
+        private long note(TreeView<ABCGrammar> note, long scale, int group, AccidentalTable accidentals) {
+            long noteBeats = Durations.multiply(parseBeats(note, context.unitBeats), scale);
+            //ticks of the start and the end are each exact, so consecutive notes never drift apart
+            int startTick = tick(position);
+            int noteTicks = tick(Durations.add(position, noteBeats)) - startTick;
+            String notePitch = note.childrenByName(ABCGrammar.PITCH).get(0).getContents();
+            int octave = octaveOf(notePitch);
+            char pitchLetter = Character.toUpperCase(notePitch.charAt(0));
+            int noteAccidental = resolveAccidental(note, pitchLetter, octave, context, accidentals);
+            events.add(startTick, noteTicks, midiPitch(octave, noteAccidental, pitchLetter), group);
+            return noteBeats;
+        }
+        
+        /**
+         * @param beats an exact position in beats
+         * @return int the position in ticks of VoiceEvents
+         */
+        private int tick(long beats) {
+            return Math.toIntExact(Durations.toTicks(beats, VoiceEvents.TICKS_PER_BEAT));
+        }
+    }
+    
+    /**
+     * @param tuplet DUPLET, TRIPLET or QUADRUPLET
+     * @return long exact factor applied to the durations of the notes of the tuplet
+     */
+    private static long tupletScale(ABCGrammar tuplet) {
+        switch(tuplet) {
+        case DUPLET:
+            return Durations.of(3, 2); //2 notes in the time of 3
+        case TRIPLET:
+            return Durations.of(2, 3); //3 notes in the time of 2
+        case QUADRUPLET:
+            return Durations.of(3, 4); //4 notes in the time of 3
+        default:
+            throw new RuntimeException("Should not reach default clause");
+        }
+    }
+    
+    /**
+     * @param octave number of octaves higher or lower than middle C
+     * @param accidental semitones the note is shifted by, from -2 to 2
+     * @param pitchLetter upper case pitch letter
+     * @return int MIDI pitch of the note, 60 being middle C
+     */
+    static int midiPitch(int octave, int accidental, char pitchLetter) {
+        return 60 + 12 * octave + LETTER_SEMITONES[pitchLetter - 'A'] + accidental;
+    }
+    
+    /**
+     * Helper method, joins sequences in order as a balanced tree of joins, so that the depth
+     * of the result grows with the logarithm of the number of sequences rather than linearly
+     * @param sequences sequences to play one after another, at least one
+     * @return MusicSequence all the sequences joined together in order
+     */
+    static MusicSequence joinAll(List<MusicSequence> sequences) {
+        if (sequences.isEmpty())
+            throw new IllegalArgumentException("Nothing to join");
+        return joinAll(sequences, 0, sequences.size());
+    }
+    
+    /**
+     * Helper method, joins the non-empty range [from, to) of sequences as a balanced tree
+     * @param sequences sequences to play one after another
+     * @param from index of the first sequence to join
+     * @param to index just past the last sequence to join, greater than from
+     * @return MusicSequence the sequences in the range joined together in order
+     */
+    private static MusicSequence joinAll(List<MusicSequence> sequences, int from, int to) {
+        if (to - from == 1)
+            return sequences.get(from);
+        int middle = (from + to) >>> 1;
+        return MusicSequence.join(joinAll(sequences, from, middle), joinAll(sequences, middle, to));
+    }
+    
+    /**
+     * Helper method, returns note elements from ParseTrees corresponding to NoteElements, taking into 
+     * account the length, key, and the accidentals previously found in the measure.
+     * Elements nest at most as deep as a chord inside a tuplet, so this does not recurse.
+     * @param tree TreeView<ABCGrammar> corresponding to a note element
+     * @param context ParseContext of the piece
+     * @param accidentals AccidentalTable of the accidentals written earlier in the measure
+     * @param recipe PieceRecipe recording the factory calls, or null
+     * @return NoteElement
+     */
+    private static NoteElement buildElement(TreeView<ABCGrammar> tree, ParseContext context, AccidentalTable accidentals,
+            PieceRecipe recipe) {
+        
+        if (tree.getName() == ABCGrammar.ELEMENT) {
+            //can be a rest, note, chord, or tuplet 
+            tree = tree.first("Element should have a none-whitespace child");
+        }
+        
+        if (tree.getName() != ABCGrammar.TUPLET)
+            return buildSimpleElement(tree, context, accidentals, recipe);
+        
+        List<NoteElement> tupletNotes = new ArrayList<>();
+        //this is the child of tuplet, in the grammar either a duplet, triplet, or quadruplet
+        TreeView<ABCGrammar> tupletChild = tree.first("Tuplet should have a none-whitespace child");
+        for (TreeView<ABCGrammar> element : tupletChild.children()) {
+            //the children of tupletChild are chords or notes
+            tupletNotes.add(buildSimpleElement(element, context, accidentals, recipe));
+        }
+        if (recipe != null)
+            recipe.tuplet(tupletNotes.size());
+        return NoteElement.tuplet(tupletNotes);
+    }
+    
+    /**
+     * Helper method, returns the note element of a rest, note or chord
+     * @param tree TreeView<ABCGrammar> of a REST, NOTE or CHORD
+     * @param context ParseContext of the piece
+     * @param accidentals AccidentalTable of the accidentals written earlier in the measure
+     * @param recipe PieceRecipe recording the factory calls, or null
+     * @return NoteElement
+     */
+    private static NoteElement buildSimpleElement(TreeView<ABCGrammar> tree, ParseContext context, AccidentalTable accidentals,
+            PieceRecipe recipe) {
+        switch(tree.getName()) {
+        
+        case REST:
+            //can have duration, else set default duration
+            double restDuration = Durations.toDouble(parseBeats(tree, context.unitBeats));
+            if (recipe != null)
+                recipe.rest(restDuration);
+            return NoteElement.rest(restDuration);
+            
+        case NOTE:
+            return buildNote(tree, context, accidentals, recipe);
+            
+        case CHORD:
+            //has one or more notes
+            List<NoteElement> chordNotes = new ArrayList<>();
+            for (TreeView<ABCGrammar> note : tree.childrenByName(ABCGrammar.NOTE)) {
+                chordNotes.add(buildNote(note, context, accidentals, recipe));
+            }
+            if (recipe != null)
+                recipe.chord(chordNotes.size());
+            return NoteElement.chord(chordNotes);
+            
+        default:
+            throw new RuntimeException("Should not reach default clause");
+        }
+    }
+    
+    /**
+     * Helper method, returns the note element of a single note
+     * @param note TreeView<ABCGrammar> of a NOTE
+     * @param context ParseContext of the piece
+     * @param accidentals AccidentalTable of the accidentals written earlier in the measure
+     * @param recipe PieceRecipe recording the factory call, or null
+     * @return NoteElement
+     */
+    private static NoteElement buildNote(TreeView<ABCGrammar> note, ParseContext context, AccidentalTable accidentals,
+            PieceRecipe recipe) {
+        //must have pitch, can have accidental, duration
+        double noteDuration = Durations.toDouble(parseBeats(note, context.unitBeats));
+        String notePitch = note.childrenByName(ABCGrammar.PITCH).get(0).getContents();
+        int octave = octaveOf(notePitch); //number of octaves higher or lower than middle C
+        char pitchLetter = Character.toUpperCase(notePitch.charAt(0)); //pitch letter to be used by constructor
+        int noteAccidental = resolveAccidental(note, pitchLetter, octave, context, accidentals);
+        if (recipe != null)
+            recipe.note(octave, noteAccidental, pitchLetter, noteDuration);
+        return NoteElement.note(octave, ACCIDENTAL_NAMES[noteAccidental + 2], pitchLetter, noteDuration);
+    }
+    
+    /**
+     * Helper method, returns the number of octaves a pitch is higher or lower than middle C
+     * @param notePitch contents of a PITCH, a letter followed by ['] or [,] characters
+     * @return int the octave of the pitch
+     */
+    private static int octaveOf(String notePitch) {
+        //a lower case letter is an octave above middle C, then each ['] raises it and each [,] lowers it
+        int octave = Character.isLowerCase(notePitch.charAt(0)) ? 1 : 0;
+        for (int i = 1; i < notePitch.length(); i++)
+            octave += notePitch.charAt(i) == '\'' ? 1 : -1;
+        return octave;
+    }
+    
+    /**
+     * Helper method, determines the accidental a note is played with, from its own accidental,
+     * an earlier accidental on the same pitch in the measure, or else the key
+     * @param note TreeView<ABCGrammar> of a NOTE
+     * @param pitchLetter upper case pitch letter of the note
+     * @param octave number of octaves the note is higher or lower than middle C
+     * @param context ParseContext of the piece
+     * @param accidentals AccidentalTable of the accidentals written earlier in the measure
+     * @return int semitones the note is shifted by, from -2 to 2
+     */
+    private static int resolveAccidental(TreeView<ABCGrammar> note, char pitchLetter, int octave,
+            ParseContext context, AccidentalTable accidentals) {
+        if (note.has(ABCGrammar.ACCIDENTAL)) { //if the note has an accidental
+            int noteAccidental = accidentalShift(note.childrenByName(ABCGrammar.ACCIDENTAL).get(0).getContents());
+            accidentals.put(pitchLetter, octave, noteAccidental); //this will notify future notes in the measure of the accidental
+            return noteAccidental;
+        } else if (accidentals.contains(pitchLetter, octave)) {
+            //if a previous note in the measure with this pitch had an accidental
+            return accidentals.get(pitchLetter, octave);
+        } else { //modify accidental based on key
+            return context.keyAccidentals[pitchLetter - 'A'];
+        }
+    }
+    
+    /**
+     * @param accidental "^", "^^", "_", "__" or "="
+     * @return int semitones the accidental shifts a note by
+     */
+    static int accidentalShift(String accidental) {
+        switch(accidental) {
+        case "^^":
+            return 2;
+        case "^":
+            return 1;
+        case "_":
+            return -1;
+        case "__":
+            return -2;
+        default:
+            return 0;
+        }
+    }
+    
+    /**
+     * Helper method, determines the key signature of a key
+     * @param key tonic of the key, optionally followed by a mode (Ex: "F#m", "D dor", "Bb Mixolydian")
+     * @return int number of sharps in the key, from -7 (7 flats) to 7
+     */
+    static int keySignature(String key) {
+        String trimmed = key.trim();
+        if (trimmed.isEmpty())
+            throw new RuntimeException("Key is unknown: " + key);
+        int tonicEnd = trimmed.length() > 1 && (trimmed.charAt(1) == '#' || trimmed.charAt(1) == 'b') ? 2 : 1;
+        String spelling = trimmed.substring(0, tonicEnd) + trimmed.substring(tonicEnd).trim().toLowerCase(Locale.ROOT);
+        Integer sharps = KEY_SIGNATURES.get(spelling);
+        if (sharps == null)
+            throw new RuntimeException("Key is unknown: " + key);
+        return sharps;
+    }
+    
+    /**
+     * Helper method, builds the table of every key spelling ABC allows, in major, minor and the modes
+     * @return Map<String key spelling, Integer number of sharps> with each mode in lower case
+     */
+    private static Map<String, Integer> keySignatures() {
+        //modes by how many sharps they add to the major key on the same tonic
+        Map<String, Integer> modes = new LinkedHashMap<>();
+        for (String mode : Arrays.asList("", "maj", "major", "ion", "ionian"))
+            modes.put(mode, 0);
+        for (String mode : Arrays.asList("m", "min", "minor", "aeo", "aeolian"))
+            modes.put(mode, -3);
+        for (String mode : Arrays.asList("lyd", "lydian"))
+            modes.put(mode, 1);
+        for (String mode : Arrays.asList("mix", "mixolydian"))
+            modes.put(mode, -1);
+        for (String mode : Arrays.asList("dor", "dorian"))
+            modes.put(mode, -2);
+        for (String mode : Arrays.asList("phr", "phrygian"))
+            modes.put(mode, -4);
+        for (String mode : Arrays.asList("loc", "locrian"))
+            modes.put(mode, -5);
+        
+        Map<String, Integer> keys = new HashMap<>();
+        //tonic letters in order of the circle of fifths, F major having 1 flat and C major none
+        String fifths = "FCGDAEB";
+        for (int i = 0; i < fifths.length(); i++) {
+            for (String accidental : Arrays.asList("", "#", "b")) {
+                //a sharp tonic adds 7 sharps to the key, a flat one 7 flats
+                int tonicSharps = i - 1 + (accidental.equals("#") ? 7 : accidental.equals("b") ? -7 : 0);
+                for (Map.Entry<String, Integer> mode : modes.entrySet()) {
+                    int sharps = tonicSharps + mode.getValue();
+                    if (sharps >= -7 && sharps <= 7)
+                        keys.put(fifths.charAt(i) + accidental + mode.getKey(), sharps);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(keys);
+    }
+    
+    /**
+     * Helper method, resolves a key signature into the accidental it gives each pitch letter
+     * @param key number of sharps if positive, or of flats if negative, between -7 and 7
+     * @return int[] semitones the key shifts each of the letters A to G by, 1, -1 or 0
+     */
+    static int[] keyAccidentals(int key) {
+        int[] accidentals = new int[7]; //normal, no accidental
+        //sharps are added to the key in this order, flats in the reverse order
+        String sharpKeys = "FCGDAEB";
+        for (int i = 0; i < Math.min(key, 7); i++)
+            accidentals[sharpKeys.charAt(i) - 'A'] = 1;
+        for (int i = 0; i < Math.min(-key, 7); i++)
+            accidentals[sharpKeys.charAt(6 - i) - 'A'] = -1;
+        return accidentals;
+    }
+    
+    /**
+     * Takes in a noteElement tree and parses its exact duration
+     * @param noteElement view of the element to parse duration of
+     * @param unitBeats packed duration in beats of the unit note length, see ParseContext
+     * @return long packed duration in beats
+     * @throws IllegalArgumentException if the duration is zero or has a zero denominator
+     */
+    static long parseBeats(TreeView<ABCGrammar> noteElement, long unitBeats) {
+        List<TreeView<ABCGrammar>> durations = noteElement.childrenByName(ABCGrammar.DURATION);
+        return parseBeats(durations.isEmpty() ? null : durations.get(0).getContents(), unitBeats);
     }
     
     /**
-     * Takes in a noteElement tree and parses the duration of it
-     * @param noteElement element to parse duration of
-     * @return double duration in beats
+     * Parses the exact duration written after a note element
+     * @param durationFraction DURATION of the element as written, or null if it has none
+     * @param unitBeats packed duration in beats of the unit note length, see ParseContext
+     * @return long packed duration in beats
+     * @throws IllegalArgumentException if the duration is zero or has a zero denominator
      */
-    static double parseDuration(ParseTree<ABCGrammar> noteElement, Header header) {
-        double duration;
-        if (noteElement.childrenByName(ABCGrammar.DURATION).size() == 0) {
-            duration = 1; //default 
+    private static long parseBeats(String durationFraction, long unitBeats) {
+        long duration;
+        if (durationFraction == null) {
+            duration = Durations.ONE; //default 
         }else {
-            String durationFraction = noteElement.childrenByName(ABCGrammar.DURATION).get(0).getContents();
             String numeratorString, denominatorString;
             int numerator, denominator;
             if (durationFraction.contains("/")) {
@@ -512,10 +1965,11 @@ public class MusicParser {
                 numerator = Integer.parseInt(durationFraction);
                 denominator = 1;
             }
-            duration = numerator / (double)denominator;
+            if (numerator == 0 || denominator == 0)
+                throw new IllegalArgumentException("Duration must not be zero: " + durationFraction);
+            duration = Durations.of(numerator, denominator);
         }
-        double beats = header.getDefaultLength() / header.getBeatLength() * duration;
-        return beats;
+        return Durations.multiply(unitBeats, duration);
     }
     
     
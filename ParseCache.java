@@ -0,0 +1,263 @@
+package abc.parser;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import abc.sound.*;
+
+/**
+ * A cache of parsed pieces in front of MusicParser.parse, keyed by the SHA-256 of the bytes
+ * of a file rather than by its path, so that copies of a tune share one entry and an edited
+ * file is parsed again. Pieces are immutable, so a cached piece is handed to every caller.
+ *
+ * The cache holds at most a number of entries and a total number of source bytes, the sizes of
+ * the files the pieces were parsed from, and evicts the least recently used entries beyond either
+ * budget. The source bytes bound how much is cached, not the heap the pieces take, which is some
+ * multiple of them that depends on the music; size the heap from measured pieces, not from this
+ * budget. Concurrent calls for the same bytes share a single parse. Safe for use by any number of threads.
+ */
+public class ParseCache {
+
+    private final int maxEntries;
+    private final long maxSourceBytes;
+
+    //guards entries and sourceBytes
+    private final Object lock = new Object();
+    //cached pieces in access order, least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //total size of the files of the cached pieces
+    private long sourceBytes = 0;
+
+    //parses running now, for callers asking for the same bytes to wait on
+    private final ConcurrentHashMap<Key, CompletableFuture<MusicPiece>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries largest number of pieces kept, at least 1
+     * @param maxSourceBytes largest total size in bytes of the files of the pieces kept, at least 1;
+     *        not a bound on the memory the pieces take
+     */
+    public ParseCache(int maxEntries, long maxSourceBytes) {
+        if (maxEntries < 1 || maxSourceBytes < 1)
+            throw new IllegalArgumentException("Cache budgets must be positive: " + maxEntries + " entries, "
+                    + maxSourceBytes + " source bytes");
+        this.maxEntries = maxEntries;
+        this.maxSourceBytes = maxSourceBytes;
+    }
+
+    /**
+     * Parses a file, or returns the piece already parsed from the same bytes
+     * @param inputMusic abc file to parse
+     * @return MusicPiece AST for the input, the same as MusicParser.parse(inputMusic)
+     * @throws IllegalArgumentException if the file cannot be read or is invalid
+     */
+    public MusicPiece parse(File inputMusic) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(inputMusic.toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + inputMusic + ": " + e, e);
+        }
+        return parse(bytes);
+    }
+
+    /**
+     * Parses the bytes of a tune, or returns the piece already parsed from the same bytes
+     * @param bytes contents of an abc file, in the default charset
+     * @return MusicPiece AST for the bytes
+     * @throws IllegalArgumentException if the bytes are not a valid piece
+     */
+    MusicPiece parse(byte[] bytes) {
+        Key key = new Key(sha256(bytes));
+        MusicPiece cached = lookUp(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        //join the parse of these bytes already running, or become the one running it
+        CompletableFuture<MusicPiece> parsing = new CompletableFuture<>();
+        CompletableFuture<MusicPiece> running = inFlight.putIfAbsent(key, parsing);
+        if (running != null) {
+            //a hit only once the other caller's parse has succeeded
+            MusicPiece shared = await(running);
+            hits.incrementAndGet();
+            return shared;
+        }
+        try {
+            //the parse that was running may have finished between the look up and now
+            MusicPiece piece = lookUp(key);
+            if (piece != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                piece = MusicParser.parseTune(Charset.defaultCharset().decode(ByteBuffer.wrap(bytes)), null);
+                store(key, piece, bytes.length);
+            }
+            parsing.complete(piece);
+            return piece;
+        } catch (RuntimeException | Error e) {
+            parsing.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, parsing);
+        }
+    }
+
+    /**
+     * @param key Key of some bytes
+     * @return MusicPiece parsed from them, marked as most recently used, or null if none is cached
+     */
+    private MusicPiece lookUp(Key key) {
+        synchronized (lock) {
+            Entry entry = entries.get(key);
+            return entry == null ? null : entry.piece;
+        }
+    }
+
+    /**
+     * Caches a piece, evicting the least recently used pieces beyond the budgets
+     * @param key Key of the bytes the piece was parsed from
+     * @param piece MusicPiece parsed from them
+     * @param size number of bytes it was parsed from
+     */
+    private void store(Key key, MusicPiece piece, long size) {
+        if (size > maxSourceBytes)
+            return; //would evict everything and then itself
+        synchronized (lock) {
+            Entry previous = entries.put(key, new Entry(piece, size));
+            if (previous != null)
+                sourceBytes -= previous.size;
+            sourceBytes += size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries || sourceBytes > maxSourceBytes) {
+                sourceBytes -= eldest.next().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param running CompletableFuture of a parse started by another caller
+     * @return MusicPiece it parsed
+     */
+    private static MusicPiece await(CompletableFuture<MusicPiece> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Removes every cached piece. Counters are kept.
+     */
+    public void clear() {
+        synchronized (lock) {
+            entries.clear();
+            sourceBytes = 0;
+        }
+    }
+
+    /**
+     * @return int number of pieces cached
+     */
+    public int size() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return long total size in bytes of the files of the pieces cached, not the memory they take
+     */
+    public long getSourceBytes() {
+        synchronized (lock) {
+            return sourceBytes;
+        }
+    }
+
+    /**
+     * @return long number of parses answered without parsing, from the cache or by waiting for
+     *         the same bytes being parsed by another caller; a wait for a parse that fails is not counted
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return long number of parses that had to parse
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return long number of pieces evicted to stay within the budgets
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @param bytes any bytes
+     * @return byte[] their SHA-256 digest
+     */
+    static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required of every JVM", e);
+        }
+    }
+
+    /**
+     * A digest compared by value
+     */
+    private static class Key {
+        private final byte[] digest;
+        private final int hash;
+
+        private Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(digest, ((Key) other).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A cached piece and the number of bytes it was parsed from
+     */
+    private static class Entry {
+        private final MusicPiece piece;
+        private final long size;
+
+        private Entry(MusicPiece piece, long size) {
+            this.piece = piece;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package abc.parser;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Opt-in instrumentation of MusicParser.parse: the wall time and the bytes allocated by the
+ * parsing thread in each stage of a parse, and counts of what was parsed. Installed with
+ * MusicParser.setMetrics; while none is installed a parse only checks a static field for null.
+ *
+ * A ParseMetrics only ever accumulates and may be shared by concurrent parses. Allocated bytes
+ * are measured with com.sun.management.ThreadMXBean and are 0 where the JVM does not support it.
+ */
+public class ParseMetrics {
+
+    /**
+     * The stages of a parse, in the order they run
+     */
+    public enum Stage {
+        //decoding the file into characters
+        READ,
+        //finding the end of the header and cutting it out
+        HEADER_SPLIT,
+        //parsing the header with the header grammar and building the Header
+        HEADER_PARSE,
+        //splitting the body into voices
+        VOICE_SPLIT,
+        //parsing the body of a voice, with the body grammar or AbcBodyParser
+        BODY_PARSE,
+        //building the MusicSequence of a voice from its ParseTree; AbcBodyParser does this while parsing
+        AST_BUILD
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    //the thread bean measuring allocations, null where they cannot be measured
+    private static final com.sun.management.ThreadMXBean THREADS = allocationBean();
+
+    private final AtomicLongArray stageCalls = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray stageNanos = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray stageBytes = new AtomicLongArray(STAGES.length);
+    private final AtomicLong tunes = new AtomicLong();
+    private final AtomicLong voices = new AtomicLong();
+    private final AtomicLong measures = new AtomicLong();
+    private final AtomicLong notes = new AtomicLong();
+    private final AtomicLong chords = new AtomicLong();
+
+    /**
+     * Measures consecutive stages run by one thread, each stage lasting from the previous lap
+     * (or the creation of the stopwatch) to its own lap. Must only be used by the thread that created it.
+     */
+    class Stopwatch {
+        private long nanos;
+        private long bytes;
+
+        private Stopwatch() {
+            nanos = System.nanoTime();
+            bytes = allocatedBytes();
+        }
+
+        /**
+         * Records the stage that has just finished, and starts the next one
+         * @param stage Stage that ran since the previous lap
+         */
+        void lap(Stage stage) {
+            long nowNanos = System.nanoTime();
+            long nowBytes = allocatedBytes();
+            int i = stage.ordinal();
+            stageCalls.incrementAndGet(i);
+            stageNanos.addAndGet(i, nowNanos - nanos);
+            stageBytes.addAndGet(i, nowBytes - bytes);
+            nanos = nowNanos;
+            bytes = nowBytes;
+        }
+    }
+
+    /**
+     * @return Stopwatch starting now on the calling thread
+     */
+    Stopwatch stopwatch() {
+        return new Stopwatch();
+    }
+
+    /**
+     * Records a parsed tune
+     * @param voiceCount number of voices in the tune
+     */
+    void countTune(int voiceCount) {
+        tunes.incrementAndGet();
+        voices.addAndGet(voiceCount);
+    }
+
+    /**
+     * Records what a voice was built from
+     * @param measureCount number of measures in the voice, as written
+     * @param noteCount number of notes in the voice, including the notes of chords
+     * @param chordCount number of chords in the voice
+     */
+    void countVoice(long measureCount, long noteCount, long chordCount) {
+        measures.addAndGet(measureCount);
+        notes.addAndGet(noteCount);
+        chords.addAndGet(chordCount);
+    }
+
+    /**
+     * @return Snapshot of everything recorded so far. Concurrent parses may be partly included.
+     */
+    public Snapshot snapshot() {
+        long[] calls = new long[STAGES.length];
+        long[] nanos = new long[STAGES.length];
+        long[] bytes = new long[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            calls[i] = stageCalls.get(i);
+            nanos[i] = stageNanos.get(i);
+            bytes[i] = stageBytes.get(i);
+        }
+        return new Snapshot(calls, nanos, bytes, tunes.get(), voices.get(), measures.get(), notes.get(), chords.get());
+    }
+
+    /**
+     * @return String everything recorded so far in the Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        return snapshot().toPrometheus();
+    }
+
+    /**
+     * The totals recorded by a ParseMetrics at one point in time. Immutable.
+     */
+    public static class Snapshot {
+        private final long[] calls;
+        private final long[] nanos;
+        private final long[] bytes;
+        private final long tunes;
+        private final long voices;
+        private final long measures;
+        private final long notes;
+        private final long chords;
+
+        private Snapshot(long[] calls, long[] nanos, long[] bytes,
+                long tunes, long voices, long measures, long notes, long chords) {
+            this.calls = calls;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.tunes = tunes;
+            this.voices = voices;
+            this.measures = measures;
+            this.notes = notes;
+            this.chords = chords;
+        }
+
+        /**
+         * @param stage Stage of a parse
+         * @return long number of times the stage ran
+         */
+        public long getCalls(Stage stage) {
+            return calls[stage.ordinal()];
+        }
+
+        /**
+         * @param stage Stage of a parse
+         * @return long total wall time of the stage in nanoseconds
+         */
+        public long getNanos(Stage stage) {
+            return nanos[stage.ordinal()];
+        }
+
+        /**
+         * @param stage Stage of a parse
+         * @return long total bytes allocated by the threads running the stage
+         */
+        public long getAllocatedBytes(Stage stage) {
+            return bytes[stage.ordinal()];
+        }
+
+        /**
+         * @return long number of tunes parsed
+         */
+        public long getTunes() {
+            return tunes;
+        }
+
+        /**
+         * @return long number of voices parsed
+         */
+        public long getVoices() {
+            return voices;
+        }
+
+        /**
+         * @return long number of measures parsed, as written rather than as played
+         */
+        public long getMeasures() {
+            return measures;
+        }
+
+        /**
+         * @return long number of notes parsed, including the notes of chords
+         */
+        public long getNotes() {
+            return notes;
+        }
+
+        /**
+         * @return long number of chords parsed
+         */
+        public long getChords() {
+            return chords;
+        }
+
+        /**
+         * @return String the snapshot in the Prometheus text exposition format
+         */
+        public String toPrometheus() {
+            StringBuilder text = new StringBuilder();
+            text.append("# HELP abc_parser_stage_calls_total Number of times each parse stage ran.\n");
+            text.append("# TYPE abc_parser_stage_calls_total counter\n");
+            for (Stage stage : STAGES)
+                appendSample(text, "abc_parser_stage_calls_total", stage, Long.toString(getCalls(stage)));
+            text.append("# HELP abc_parser_stage_seconds_total Wall time spent in each parse stage.\n");
+            text.append("# TYPE abc_parser_stage_seconds_total counter\n");
+            for (Stage stage : STAGES)
+                appendSample(text, "abc_parser_stage_seconds_total", stage, Double.toString(getNanos(stage) / 1e9));
+            text.append("# HELP abc_parser_stage_allocated_bytes_total Bytes allocated in each parse stage.\n");
+            text.append("# TYPE abc_parser_stage_allocated_bytes_total counter\n");
+            for (Stage stage : STAGES)
+                appendSample(text, "abc_parser_stage_allocated_bytes_total", stage, Long.toString(getAllocatedBytes(stage)));
+            appendCounter(text, "abc_parser_tunes_total", "Tunes parsed.", tunes);
+            appendCounter(text, "abc_parser_voices_total", "Voices parsed.", voices);
+            appendCounter(text, "abc_parser_measures_total", "Measures parsed, as written.", measures);
+            appendCounter(text, "abc_parser_notes_total", "Notes parsed, including the notes of chords.", notes);
+            appendCounter(text, "abc_parser_chords_total", "Chords parsed.", chords);
+            return text.toString();
+        }
+
+        private static void appendSample(StringBuilder text, String name, Stage stage, String value) {
+            text.append(name).append("{stage=\"").append(stage.name().toLowerCase(Locale.ROOT)).append("\"} ")
+                .append(value).append('\n');
+        }
+
+        private static void appendCounter(StringBuilder text, String name, String help, long value) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(value).append('\n');
+        }
+
+        @Override
+        public String toString() {
+            return toPrometheus();
+        }
+    }
+
+    /**
+     * @return long bytes allocated so far by the calling thread, or 0 if they cannot be measured
+     */
+    private static long allocatedBytes() {
+        if (THREADS == null)
+            return 0;
+        return Math.max(0, THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+
+    /**
+     * @return com.sun.management.ThreadMXBean measuring the allocations of threads, or null
+     *         if the JVM does not provide one or cannot measure them
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean))
+                return null;
+            com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+            if (!allocations.isThreadAllocatedMemorySupported())
+                return null;
+            if (!allocations.isThreadAllocatedMemoryEnabled())
+                allocations.setThreadAllocatedMemoryEnabled(true);
+            return allocations;
+        } catch (LinkageError | SecurityException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package abc.parser;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import abc.sound.*;
+import abc.sound.Header.HeaderBuilder;
+
+/**
+ * The calls that built a MusicPiece, recorded while it is parsed so that the same piece can be
+ * built again from them without parsing: the HeaderBuilder setters called by buildHeader, then
+ * for each voice the NoteElement and MusicSequence factories called by buildVoice or by
+ * AbcBodyParser, in the order they were called. Each is one tag byte followed by its operands.
+ *
+ * Elements and sequences are replayed onto two stacks: a factory of several parts pops them
+ * and pushes what it builds, and the end of a voice pops its sequence.
+ */
+final class PieceRecipe {
+
+    private static final byte FULL_HEADER = 1;
+    private static final byte TITLE = 2;
+    private static final byte COMPOSER = 3;
+    private static final byte METER = 4;
+    private static final byte LENGTH = 5;
+    private static final byte BEAT_LENGTH = 6;
+    private static final byte TEMPO = 7;
+    private static final byte VOICE_NAME = 8;
+    private static final byte KEY = 9;
+    private static final byte REST = 20;
+    private static final byte NOTE = 21;
+    private static final byte CHORD = 22;
+    private static final byte TUPLET = 23;
+    private static final byte MEASURE = 24;
+    private static final byte JOIN = 25;
+    private static final byte REPEAT = 26;
+    private static final byte VOICE = 27;
+
+    /**
+     * Builds the elements and sequences of voices from the calls replayed, see replay
+     */
+    interface Builder<E, S> {
+        E rest(double duration);
+
+        E note(int octave, int accidental, char pitchLetter, double duration);
+
+        E chord(List<E> notes);
+
+        E tuplet(List<E> elements);
+
+        S measure(List<E> elements);
+
+        /**
+         * @param sequences sequences to play one after another, at least one
+         * @return S the sequences joined, also for the parts of a repeat laid out by MusicParser.repeatLayout
+         */
+        S join(List<S> sequences);
+    }
+
+    //builds the NoteElements and MusicSequences of a MusicPiece, with the same factories as the parse
+    private static final Builder<NoteElement, MusicSequence> PIECES = new Builder<NoteElement, MusicSequence>() {
+        @Override
+        public NoteElement rest(double duration) {
+            return NoteElement.rest(duration);
+        }
+
+        @Override
+        public NoteElement note(int octave, int accidental, char pitchLetter, double duration) {
+            return NoteElement.note(octave, MusicParser.ACCIDENTAL_NAMES[accidental + 2], pitchLetter, duration);
+        }
+
+        @Override
+        public NoteElement chord(List<NoteElement> notes) {
+            return NoteElement.chord(notes);
+        }
+
+        @Override
+        public NoteElement tuplet(List<NoteElement> elements) {
+            return NoteElement.tuplet(elements);
+        }
+
+        @Override
+        public MusicSequence measure(List<NoteElement> elements) {
+            return MusicSequence.measure(elements);
+        }
+
+        @Override
+        public MusicSequence join(List<MusicSequence> sequences) {
+            return MusicParser.joinAll(sequences);
+        }
+    };
+
+    private ByteBuffer ops = ByteBuffer.allocate(1024);
+
+    /**
+     * @return byte[] the calls recorded so far
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(ops.array(), ops.position());
+    }
+
+    /**
+     * Records the calls recorded by another recipe, as if they had been recorded here
+     * @param calls PieceRecipe recording calls made after those recorded so far
+     */
+    void append(PieceRecipe calls) {
+        reserve(calls.ops.position()).put(calls.ops.array(), 0, calls.ops.position());
+    }
+
+    /**
+     * Records calls taken from another recipe by toByteArray, as if they had been recorded here
+     * @param calls byte[] calls made after those recorded so far
+     */
+    void append(byte[] calls) {
+        reserve(calls.length).put(calls);
+    }
+
+    /**
+     * Forgets every call recorded so far, so that the recipe records from scratch
+     */
+    void clear() {
+        ops.clear();
+    }
+
+    void setFullHeader(String fullHeader) {
+        string(FULL_HEADER, fullHeader);
+    }
+
+    void setTitle(String title) {
+        string(TITLE, title);
+    }
+
+    void setComposer(String composer) {
+        string(COMPOSER, composer);
+    }
+
+    void setMeter(int numerator, int denominator) {
+        reserve(9).put(METER).putInt(numerator).putInt(denominator);
+    }
+
+    void setLength(double length) {
+        reserve(9).put(LENGTH).putDouble(length);
+    }
+
+    void setBeatLength(double beatLength) {
+        reserve(9).put(BEAT_LENGTH).putDouble(beatLength);
+    }
+
+    void setTempo(int tempo) {
+        reserve(5).put(TEMPO).putInt(tempo);
+    }
+
+    void addVoice(String voiceName) {
+        string(VOICE_NAME, voiceName);
+    }
+
+    void setKey(int key) {
+        reserve(5).put(KEY).putInt(key);
+    }
+
+    void rest(double duration) {
+        reserve(9).put(REST).putDouble(duration);
+    }
+
+    /**
+     * @param octave number of octaves higher or lower than middle C, recorded in a byte
+     * @param accidental semitones the note is shifted by, from -2 to 2
+     * @param pitchLetter upper case pitch letter
+     * @param duration duration in beats
+     * @throws IllegalArgumentException if the octave does not fit in a byte
+     */
+    void note(int octave, int accidental, char pitchLetter, double duration) {
+        if (octave < Byte.MIN_VALUE || octave > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Octave out of range for a recipe: " + octave);
+        reserve(13).put(NOTE).put((byte) octave).put((byte) accidental).putChar(pitchLetter).putDouble(duration);
+    }
+
+    /**
+     * @param notes number of notes of the chord, the last ones recorded
+     */
+    void chord(int notes) {
+        reserve(5).put(CHORD).putInt(notes);
+    }
+
+    /**
+     * @param elements number of elements of the tuplet, the last ones recorded
+     */
+    void tuplet(int elements) {
+        reserve(5).put(TUPLET).putInt(elements);
+    }
+
+    /**
+     * @param elements number of elements of the measure, the last ones recorded
+     */
+    void measure(int elements) {
+        reserve(5).put(MEASURE).putInt(elements);
+    }
+
+    /**
+     * @param sequences number of sequences joined by MusicParser.joinAll, the last ones recorded
+     */
+    void join(int sequences) {
+        reserve(5).put(JOIN).putInt(sequences);
+    }
+
+    /**
+     * @param sequences number of parts of the repeat, the last ones recorded: its start then its endings
+     * @param secondEndings index among them of the first second ending
+     */
+    void repeat(int sequences, int secondEndings) {
+        reserve(9).put(REPEAT).putInt(sequences).putInt(secondEndings);
+    }
+
+    /**
+     * Ends a voice, its sequence being the last one recorded
+     */
+    void voice() {
+        reserve(1).put(VOICE);
+    }
+
+    private void string(byte tag, String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        reserve(5 + utf8.length).put(tag).putInt(utf8.length).put(utf8);
+    }
+
+    /**
+     * @param bytes number of bytes about to be recorded
+     * @return ByteBuffer of the calls, with room for them
+     */
+    private ByteBuffer reserve(int bytes) {
+        if (ops.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(ops.capacity() * 2, ops.position() + bytes));
+            ops.flip();
+            grown.put(ops);
+            ops = grown;
+        }
+        return ops;
+    }
+
+    /**
+     * Builds a piece again from the calls that built it
+     * @param recorded ByteBuffer of calls recorded by a PieceRecipe, read from its position to its limit
+     * @return MusicPiece equal to the one parsed while recording
+     * @throws IllegalArgumentException if the calls are not a whole piece
+     * @throws BufferUnderflowException if the calls are cut short
+     */
+    static MusicPiece replay(ByteBuffer recorded) {
+        HeaderBuilder hBuilder = new HeaderBuilder();
+        List<MusicSequence> voiceSequences = replay(recorded, hBuilder, PIECES);
+        Header header = hBuilder.createHeader();
+        //as in parseTune, a header naming no voices has a single voice named ""
+        if (header.getVoices().size() == 0)
+            header.getVoices().add("");
+        return new MusicPiece(header, voiceSequences);
+    }
+
+    /**
+     * Replays recorded calls, calling the header setters on a HeaderBuilder and building the voices with
+     * a Builder, so that what was recorded can also be built into something other than a MusicPiece
+     * @param recorded ByteBuffer of calls recorded by a PieceRecipe, read from its position to its limit
+     * @param hBuilder HeaderBuilder to call the recorded setters on
+     * @param builder Builder of the elements and sequences of the voices
+     * @return List<S> the sequence of each voice, in the order recorded
+     * @throws IllegalArgumentException if the calls are not a whole piece
+     * @throws BufferUnderflowException if the calls are cut short
+     */
+    static <E, S> List<S> replay(ByteBuffer recorded, HeaderBuilder hBuilder, Builder<E, S> builder) {
+        List<E> elements = new ArrayList<>();
+        List<S> sequences = new ArrayList<>();
+        List<S> voiceSequences = new ArrayList<>();
+        while (recorded.hasRemaining()) {
+            byte tag = recorded.get();
+            switch (tag) {
+            case FULL_HEADER:
+                hBuilder.setFullHeader(string(recorded));
+                break;
+            case TITLE:
+                hBuilder.setTitle(string(recorded));
+                break;
+            case COMPOSER:
+                hBuilder.setComposer(string(recorded));
+                break;
+            case METER:
+                int meterNum = recorded.getInt();
+                hBuilder.setMeter(meterNum, recorded.getInt());
+                break;
+            case LENGTH:
+                hBuilder.setLength(recorded.getDouble());
+                break;
+            case BEAT_LENGTH:
+                hBuilder.setBeatLength(recorded.getDouble());
+                break;
+            case TEMPO:
+                hBuilder.setTempo(recorded.getInt());
+                break;
+            case VOICE_NAME:
+                hBuilder.addVoice(string(recorded));
+                break;
+            case KEY:
+                hBuilder.setKey(recorded.getInt());
+                break;
+            case REST:
+                elements.add(builder.rest(recorded.getDouble()));
+                break;
+            case NOTE:
+                int octave = recorded.get();
+                int accidental = recorded.get();
+                if (accidental < -2 || accidental > 2)
+                    throw new IllegalArgumentException("Accidental out of range: " + accidental);
+                char pitchLetter = recorded.getChar();
+                elements.add(builder.note(octave, accidental, pitchLetter, recorded.getDouble()));
+                break;
+            case CHORD:
+                elements.add(builder.chord(pop(elements, recorded.getInt())));
+                break;
+            case TUPLET:
+                elements.add(builder.tuplet(pop(elements, recorded.getInt())));
+                break;
+            case MEASURE:
+                sequences.add(builder.measure(pop(elements, recorded.getInt())));
+                break;
+            case JOIN:
+                sequences.add(builder.join(pop(sequences, recorded.getInt())));
+                break;
+            case REPEAT:
+                List<S> parts = pop(sequences, recorded.getInt());
+                sequences.add(builder.join(MusicParser.repeatLayout(parts, recorded.getInt())));
+                break;
+            case VOICE:
+                voiceSequences.add(pop(sequences, 1).get(0));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown call " + tag);
+            }
+        }
+        if (!elements.isEmpty() || !sequences.isEmpty())
+            throw new IllegalArgumentException("Calls left parts outside of any voice");
+        return voiceSequences;
+    }
+
+    /**
+     * @param stack elements or sequences built so far
+     * @param count number of them to take from the top
+     * @return List<T> the top count of the stack, in the order they were built, removed from it
+     */
+    private static <T> List<T> pop(List<T> stack, int count) {
+        if (count < 0 || count > stack.size())
+            throw new IllegalArgumentException("Cannot take " + count + " parts of " + stack.size());
+        List<T> top = stack.subList(stack.size() - count, stack.size());
+        List<T> popped = new ArrayList<>(top);
+        top.clear();
+        return popped;
+    }
+
+    private static String string(ByteBuffer recorded) {
+        int length = recorded.getInt();
+        if (length < 0 || length > recorded.remaining())
+            throw new IllegalArgumentException("String length out of range: " + length);
+        byte[] utf8 = new byte[length];
+        recorded.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,163 @@
+package abc.parser;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import abc.sound.*;
+
+/**
+ * A directory of pieces stored in a compact binary form, so that a tune parsed once is loaded
+ * on later starts without parsing it and without the grammar files. A piece is stored under the
+ * SHA-256 of the bytes of its file, as the calls that built it (see PieceRecipe), and is only
+ * loaded if its file still has those bytes and it was stored by this PARSER_VERSION, with the
+ * same engine and from the bytes decoded with the same charset. A piece is parsed, and its calls
+ * recorded, with the engine, charset and voice executor the store was made with, so stores made
+ * with different engines or charsets may share a directory without loading each other's pieces.
+ *
+ * Pieces are written to a temporary file and moved into place, so that concurrent stores and
+ * processes never see a piece half written.
+ */
+public class PieceStore {
+
+    //version of the pieces built from a source, see MusicParser.BUILD_VERSION
+    static final int PARSER_VERSION = MusicParser.BUILD_VERSION;
+    private static final int MAGIC = 0x41424350;
+    private static final String SUFFIX = ".piece";
+
+    private final Path directory;
+    private final Executor voiceExecutor;
+    private final MusicParser.Engine engine;
+    private final Charset charset;
+
+    /**
+     * Makes a store that decodes files with the platform charset and parses the voices of a piece in turn
+     * with the grammar, as MusicParser.parse does
+     * @param directory directory holding the stored pieces, created if it does not exist
+     * @throws IOException if the directory cannot be created
+     */
+    public PieceStore(Path directory) throws IOException {
+        this(directory, null, MusicParser.Engine.GRAMMAR, Charset.defaultCharset());
+    }
+
+    /**
+     * @param directory directory holding the stored pieces, created if it does not exist
+     * @param voiceExecutor runs one task per voice of a piece parsed, or null to parse the voices in turn
+     * @param engine Engine parsing the body of each voice of a piece parsed
+     * @param charset Charset the files parsed are decoded with
+     * @throws IOException if the directory cannot be created
+     */
+    public PieceStore(Path directory, Executor voiceExecutor, MusicParser.Engine engine, Charset charset)
+            throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.voiceExecutor = voiceExecutor;
+        this.engine = Objects.requireNonNull(engine);
+        this.charset = Objects.requireNonNull(charset);
+    }
+
+    /**
+     * Loads the piece stored for a file, or else parses the file and stores its piece
+     * @param inputMusic abc file to parse
+     * @return MusicPiece AST for the input decoded with the charset of the store, the same as
+     *         MusicParser.parse(inputMusic, voiceExecutor, engine) builds when that is the platform charset
+     * @throws IllegalArgumentException if the file cannot be read or is invalid
+     */
+    public MusicPiece parse(File inputMusic) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(inputMusic.toPath());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read " + inputMusic + ": " + e, e);
+        }
+        byte[] hash = ParseCache.sha256(bytes);
+        //the engine is in the name as well, so that stores of both engines sharing the directory keep their own pieces
+        Path stored = directory.resolve(hex(hash) + "-" + engine.name().toLowerCase(Locale.ROOT) + SUFFIX);
+
+        MusicPiece piece = load(stored, hash);
+        if (piece != null)
+            return piece;
+
+        PieceRecipe recipe = new PieceRecipe();
+        piece = MusicParser.parseTune(charset.decode(ByteBuffer.wrap(bytes)), voiceExecutor, engine, recipe);
+        try {
+            store(stored, hash, recipe.toByteArray());
+        } catch (IOException e) {
+            //the piece is parsed again next time
+        }
+        return piece;
+    }
+
+    /**
+     * @param stored file a piece may be stored in
+     * @param hash SHA-256 of the source the piece must have been parsed from
+     * @return MusicPiece stored in the file, or null if there is none, it is stale, it was parsed with another
+     *         engine or decoded with another charset, or it cannot be read
+     */
+    private MusicPiece load(Path stored, byte[] hash) {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(stored);
+        } catch (IOException e) {
+            return null; //not stored yet, or unreadable
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(contents);
+            if (in.getInt() != MAGIC || in.getInt() != PARSER_VERSION || in.getInt() != engine.ordinal())
+                return null;
+            byte[] charsetName = new byte[in.getShort() & 0xffff];
+            in.get(charsetName);
+            if (!charset.name().equals(new String(charsetName, StandardCharsets.UTF_8)))
+                return null;
+            byte[] storedHash = new byte[hash.length];
+            in.get(storedHash);
+            if (!Arrays.equals(hash, storedHash))
+                return null;
+            return PieceRecipe.replay(in);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null; //written by something else, parsed and stored again
+        }
+    }
+
+    /**
+     * Writes a piece, replacing any piece already stored in the file
+     * @param stored file to store the piece in
+     * @param hash SHA-256 of the source of the piece
+     * @param recipe calls recorded by a PieceRecipe while the piece was parsed
+     * @throws IOException if the piece cannot be written
+     */
+    private void store(Path stored, byte[] hash, byte[] recipe) throws IOException {
+        Path temporary = Files.createTempFile(directory, "piece", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(PARSER_VERSION);
+                out.writeInt(engine.ordinal());
+                byte[] charsetName = charset.name().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(charsetName.length);
+                out.write(charsetName);
+                out.write(hash);
+                out.write(recipe);
+            }
+            try {
+                Files.move(temporary, stored, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, stored, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @param bytes any bytes
+     * @return String them in lower case hexadecimal
+     */
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package abc.parser;
+
+import java.util.*;
+import lib6005.parser.*;
+
+/**
+ * A read-only view of a ParseTree node and of every node below it, built once for the whole tree
+ * by of. Each view holds the views of its children grouped by name, with whitespace children
+ * dropped, so that looking up children by name neither filters the children again nor allocates
+ * a new list or view. Lists returned by a view are shared and must not be modified.
+ */
+final class TreeView<E extends Enum<E>> {
+
+    private final ParseTree<E> tree;
+    //views of the children other than whitespace, in order
+    private List<TreeView<E>> children = Collections.emptyList();
+    //the same views by name, in order; names without children are absent, and a leaf has none
+    private EnumMap<E, List<TreeView<E>>> byName = null;
+
+    private TreeView(ParseTree<E> tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Builds the views of a node and of every node below it, in a single pass over the tree
+     * with an explicit stack, so deep trees do not deepen the call stack
+     * @param root ParseTree node to view
+     * @param whitespace name of the whitespace children to drop
+     * @return TreeView<E> the view of root
+     */
+    static <E extends Enum<E>> TreeView<E> of(ParseTree<E> root, E whitespace) {
+        TreeView<E> rootView = new TreeView<>(root);
+        Deque<TreeView<E>> pending = new ArrayDeque<>();
+        pending.push(rootView);
+        while (!pending.isEmpty()) {
+            TreeView<E> view = pending.pop();
+            List<ParseTree<E>> all = view.tree.children();
+            if (all.isEmpty())
+                continue;
+            view.children = new ArrayList<>(all.size());
+            view.byName = new EnumMap<>(whitespace.getDeclaringClass());
+            for (ParseTree<E> child : all) {
+                E name = child.getName();
+                if (name == whitespace)
+                    continue;
+                TreeView<E> childView = new TreeView<>(child);
+                view.children.add(childView);
+                List<TreeView<E>> named = view.byName.get(name);
+                if (named == null) {
+                    named = new ArrayList<>(2);
+                    view.byName.put(name, named);
+                }
+                named.add(childView);
+                pending.push(childView);
+            }
+        }
+        return rootView;
+    }
+
+    /**
+     * @return E the name of the viewed node
+     */
+    E getName() {
+        return tree.getName();
+    }
+
+    /**
+     * @return String the text the viewed node was parsed from
+     */
+    String getContents() {
+        return tree.getContents();
+    }
+
+    /**
+     * @return List<TreeView<E>> the views of the children of the node other than whitespace, in order
+     */
+    List<TreeView<E>> children() {
+        return children;
+    }
+
+    /**
+     * @param name name of the children to find
+     * @return List<TreeView<E>> the views of the children of the node with that name, in order
+     */
+    List<TreeView<E>> childrenByName(E name) {
+        List<TreeView<E>> named = byName == null ? null : byName.get(name);
+        return named == null ? Collections.<TreeView<E>>emptyList() : named;
+    }
+
+    /**
+     * @param name name of the children to look for
+     * @return true iff the node has at least one child with that name
+     */
+    boolean has(E name) {
+        return byName != null && byName.containsKey(name);
+    }
+
+    /**
+     * @param missing message of the exception thrown if there is no such child
+     * @return TreeView<E> the view of the first child of the node that is not whitespace
+     */
+    TreeView<E> first(String missing) {
+        if (children.isEmpty())
+            throw new RuntimeException(missing);
+        return children.get(0);
+    }
+}
@@ -0,0 +1,253 @@
+package abc.parser;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * An immutable index of the tunes in an abc collection file. For each tune it records
+ * the byte offset and length of the tune in the file, its "X:" number and its "T:" title,
+ * so that a single tune can be read and parsed without scanning the tunes before it.
+ */
+public class TuneIndex {
+    
+    //Sidecar files start with this magic number ("ABCI") followed by the format version
+    private static final int MAGIC = 0x41424349;
+    private static final int FORMAT_VERSION = 1;
+    //Only this many bytes of a line are kept while scanning, enough for any header field we read
+    private static final int MAX_FIELD_LINE = 1024;
+    
+    /**
+     * Location and identity of one tune in a collection
+     */
+    public static class Entry {
+        private final long offset;
+        private final int length;
+        private final int number;
+        private final String title;
+        
+        private Entry(long offset, int length, int number, String title) {
+            this.offset = offset;
+            this.length = length;
+            this.number = number;
+            this.title = title;
+        }
+        
+        /**
+         * @return long byte offset of the tune's "X:" line in the collection
+         */
+        public long getOffset() {
+            return offset;
+        }
+        
+        /**
+         * @return int length of the tune in bytes
+         */
+        public int getLength() {
+            return length;
+        }
+        
+        /**
+         * @return int the tune's "X:" number, or -1 if it is not a number
+         */
+        public int getNumber() {
+            return number;
+        }
+        
+        /**
+         * @return String the tune's first "T:" title, empty if it has none
+         */
+        public String getTitle() {
+            return title;
+        }
+    }
+    
+    private final long collectionSize;
+    private final List<Entry> entries;
+    private final Map<Integer, Entry> byNumber;
+    
+    private TuneIndex(long collectionSize, List<Entry> entries) {
+        this.collectionSize = collectionSize;
+        this.entries = Collections.unmodifiableList(entries);
+        Map<Integer, Entry> byNumber = new HashMap<>();
+        for (Entry entry : entries) {
+            //a collection may reuse a number, the first tune with it wins
+            if (entry.number >= 0 && !byNumber.containsKey(entry.number))
+                byNumber.put(entry.number, entry);
+        }
+        this.byNumber = byNumber;
+    }
+    
+    /**
+     * @return long size in bytes of the collection when it was indexed
+     */
+    public long getCollectionSize() {
+        return collectionSize;
+    }
+    
+    /**
+     * @return List<Entry> every tune of the collection, in file order
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+    
+    /**
+     * @param number "X:" number of a tune
+     * @return Entry the first tune with that number, or null if there is none
+     */
+    public Entry getTune(int number) {
+        return byNumber.get(number);
+    }
+    
+    /**
+     * Scans a collection file once and indexes every tune in it. A tune starts at an "X:"
+     * line and runs up to the next one; anything before the first "X:" line is skipped.
+     * @param collection abc file holding one or more tunes
+     * @return TuneIndex index of the collection
+     * @throws IOException if the collection cannot be read
+     */
+    public static TuneIndex build(Path collection) throws IOException {
+        TuneScanner scanner = new TuneScanner(Charset.defaultCharset());
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        long lineStart = 0;
+        long position = 0;
+        //lines end with "\n", "\r\n" or a lone "\r", as BufferedReader.readLine in parseCollection splits them
+        boolean afterReturn = false;
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(collection)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    position++;
+                    if (buffer[i] == '\n' && afterReturn) {
+                        //the end of a "\r\n" whose line was scanned at the "\r"
+                        lineStart = position;
+                        afterReturn = false;
+                    } else if (buffer[i] == '\n' || buffer[i] == '\r') {
+                        scanner.line(lineStart, line);
+                        line.reset();
+                        lineStart = position;
+                        afterReturn = buffer[i] == '\r';
+                    } else {
+                        afterReturn = false;
+                        if (line.size() < MAX_FIELD_LINE)
+                            line.write(buffer[i]);
+                    }
+                }
+            }
+        }
+        //the last line may not end with a line break
+        if (lineStart < position)
+            scanner.line(lineStart, line);
+        return new TuneIndex(position, scanner.finish(position));
+    }
+    
+    /**
+     * Tracks the tune being scanned by build, line by line
+     */
+    private static class TuneScanner {
+        private final Charset charset;
+        private final List<Entry> entries = new ArrayList<>();
+        //offset of the current tune, -1 before the first tune
+        private long tuneStart = -1;
+        private int number = -1;
+        private String title = "";
+        //true until the current tune's "K:" line
+        private boolean inHeader = false;
+        
+        private TuneScanner(Charset charset) {
+            this.charset = charset;
+        }
+        
+        /**
+         * Reads the header fields of one line
+         * @param lineStart byte offset of the line
+         * @param line bytes of the line, without its line break
+         * @throws IOException if the tune ending at this line is too long to index
+         */
+        private void line(long lineStart, ByteArrayOutputStream line) throws IOException {
+            String field = new String(line.toByteArray(), charset);
+            if (field.startsWith("X:")) {
+                //a new tune ends the previous one
+                finish(lineStart);
+                tuneStart = lineStart;
+                number = parseNumber(field.substring(2));
+                title = "";
+                inHeader = true;
+            } else if (inHeader && field.startsWith("T:") && title.isEmpty()) {
+                title = field.substring(2).trim();
+            } else if (inHeader && field.startsWith("K:")) {
+                inHeader = false;
+            }
+        }
+        
+        /**
+         * Ends the current tune, if any
+         * @param end byte offset just past the tune
+         * @return List<Entry> the tunes scanned so far
+         * @throws IOException if the tune is too long to index
+         */
+        private List<Entry> finish(long end) throws IOException {
+            if (tuneStart >= 0) {
+                if (end - tuneStart > Integer.MAX_VALUE)
+                    throw new IOException("Tune at offset " + tuneStart + " is too long to index");
+                entries.add(new Entry(tuneStart, (int) (end - tuneStart), number, title));
+                tuneStart = -1;
+            }
+            return entries;
+        }
+    }
+    
+    /**
+     * Writes this index to a compact sidecar file
+     * @param sidecar file to write, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path sidecar) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(sidecar)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(collectionSize);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.offset);
+                out.writeInt(entry.length);
+                out.writeInt(entry.number);
+                out.writeUTF(entry.title);
+            }
+        }
+    }
+    
+    /**
+     * Reads an index written by save
+     * @param sidecar file written by save
+     * @return TuneIndex the saved index
+     * @throws IOException if the file cannot be read or is not a tune index
+     */
+    public static TuneIndex load(Path sidecar) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("Not a tune index: " + sidecar);
+            long collectionSize = in.readLong();
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                entries.add(new Entry(in.readLong(), in.readInt(), in.readInt(), in.readUTF()));
+            return new TuneIndex(collectionSize, entries);
+        }
+    }
+    
+    /**
+     * @param value text after "X:"
+     * @return int the tune number, or -1 if value is not a number
+     */
+    private static int parseNumber(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
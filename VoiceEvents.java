@@ -0,0 +1,121 @@
+package abc.parser;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, compact representation of one voice of a piece as parallel arrays of
+ * note events, in the order they are played. Event i starts at getStartTick(i), lasts
+ * getDurationTicks(i) and sounds MIDI pitch getPitch(i); notes of the same chord or
+ * tuplet share a group id. Rests produce no events and only advance the start tick
+ * of the events after them. Repeats are expanded.
+ */
+public class VoiceEvents {
+    
+    //Resolution of the ticks, divisible by the 2, 3 and 4 of duplets, triplets and quadruplets
+    public static final int TICKS_PER_BEAT = 960;
+    
+    private final int[] startTicks;
+    private final int[] durationTicks;
+    private final byte[] pitches;
+    private final int[] groups;
+    private final int lengthTicks;
+    
+    private VoiceEvents(int[] startTicks, int[] durationTicks, byte[] pitches, int[] groups, int lengthTicks) {
+        this.startTicks = startTicks;
+        this.durationTicks = durationTicks;
+        this.pitches = pitches;
+        this.groups = groups;
+        this.lengthTicks = lengthTicks;
+    }
+    
+    /**
+     * @return int number of note events in the voice
+     */
+    public int size() {
+        return pitches.length;
+    }
+    
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return int tick at which the event starts
+     */
+    public int getStartTick(int event) {
+        return startTicks[event];
+    }
+    
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return int number of ticks the event lasts
+     */
+    public int getDurationTicks(int event) {
+        return durationTicks[event];
+    }
+    
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return int MIDI pitch of the event, 60 being middle C
+     */
+    public int getPitch(int event) {
+        return pitches[event];
+    }
+    
+    /**
+     * @param event index of an event, 0 <= event < size()
+     * @return int id shared by the events of the same note, chord or tuplet
+     */
+    public int getGroup(int event) {
+        return groups[event];
+    }
+    
+    /**
+     * @return int length of the whole voice in ticks, including trailing rests
+     */
+    public int getLengthTicks() {
+        return lengthTicks;
+    }
+    
+    /**
+     * Accumulates the events of a voice in play order
+     */
+    static class Builder {
+        private int[] startTicks = new int[64];
+        private int[] durationTicks = new int[64];
+        private byte[] pitches = new byte[64];
+        private int[] groups = new int[64];
+        private int size = 0;
+        
+        /**
+         * Appends an event
+         * @param startTick tick at which the event starts
+         * @param durationTick number of ticks the event lasts
+         * @param pitch MIDI pitch, 0 to 127
+         * @param group id of the note, chord or tuplet the event belongs to
+         * @throws IllegalArgumentException if pitch is outside the MIDI range
+         */
+        void add(int startTick, int durationTick, int pitch, int group) {
+            if (pitch < 0 || pitch > 127)
+                throw new IllegalArgumentException("Pitch outside the MIDI range: " + pitch);
+            if (size == pitches.length) {
+                int capacity = size * 2;
+                startTicks = Arrays.copyOf(startTicks, capacity);
+                durationTicks = Arrays.copyOf(durationTicks, capacity);
+                pitches = Arrays.copyOf(pitches, capacity);
+                groups = Arrays.copyOf(groups, capacity);
+            }
+            startTicks[size] = startTick;
+            durationTicks[size] = durationTick;
+            pitches[size] = (byte) pitch;
+            groups[size] = group;
+            size++;
+        }
+        
+        /**
+         * @param lengthTicks length of the whole voice in ticks
+         * @return VoiceEvents the events appended so far, in arrays trimmed to their size
+         */
+        VoiceEvents build(int lengthTicks) {
+            return new VoiceEvents(Arrays.copyOf(startTicks, size), Arrays.copyOf(durationTicks, size),
+                    Arrays.copyOf(pitches, size), Arrays.copyOf(groups, size), lengthTicks);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package abc.parser;
+
+import java.util.*;
+
+/**
+ * Generates deterministic abc tunes for the benchmarks. The same arguments always give the
+ * same text, so results measured on different commits are measured on the same input.
+ *
+ * Tunes are in 4/4 with a unit note length of 1/8, every measure filling exactly 8 units with
+ * notes, rests, chords and triplets. Measures come in blocks of 16: a repeat of four measures
+ * with first and second endings, then plain measures, closed by ||. Measures left over after
+ * the last whole block are plain, and the tune ends with |].
+ */
+final class CorpusGenerator {
+
+    //seed used by the benchmarks, changing it changes every stored baseline
+    static final long SEED = 6005;
+    //measures written on each line of a voice
+    private static final int MEASURES_PER_LINE = 4;
+    //measures in a block of one repeat followed by plain measures
+    private static final int BLOCK = 16;
+
+    private static final String LETTERS = "CDEFGABcdefgab";
+    private static final String[] ACCIDENTALS = {"^", "_", "=", "^^", "__"};
+
+    private CorpusGenerator() {
+    }
+
+    /**
+     * @param voices number of voices, 1 for a tune without V: fields
+     * @param measures number of measures in each voice
+     * @param key K: field of the tune
+     * @param seed seed of the notes chosen
+     * @return String the text of the tune
+     */
+    static String tune(int voices, int measures, String key, long seed) {
+        StringBuilder tune = new StringBuilder(measures * voices * 40 + 200);
+        tune.append("X:1\n");
+        tune.append("T:Generated ").append(voices).append("x").append(measures).append("\n");
+        tune.append("C:CorpusGenerator\n");
+        tune.append("M:4/4\n");
+        tune.append("L:1/8\n");
+        tune.append("Q:1/4=120\n");
+        if (voices > 1) {
+            for (int v = 0; v < voices; v++)
+                tune.append("V:").append(voiceName(v)).append("\n");
+        }
+        tune.append("K:").append(key).append("\n");
+
+        //each voice has its own notes, but the same bar lines
+        Random[] random = new Random[voices];
+        for (int v = 0; v < voices; v++)
+            random[v] = new Random(seed * 31 + v);
+        for (int line = 0; line < measures; line += MEASURES_PER_LINE) {
+            for (int v = 0; v < voices; v++) {
+                if (voices > 1)
+                    tune.append("V:").append(voiceName(v)).append("\n");
+                for (int m = line; m < Math.min(line + MEASURES_PER_LINE, measures); m++)
+                    appendMeasure(tune, m, measures, random[v]);
+                tune.append("\n");
+            }
+        }
+        return tune.toString();
+    }
+
+    /**
+     * @param minimumLength number of characters the tune has at least
+     * @param key K: field of the tune
+     * @return String the text of a tune of a single voice, at least minimumLength characters long
+     */
+    static String largeTune(int minimumLength, String key) {
+        //measures are written the same way whatever their number, so a sample gives their average length
+        int sample = 1000;
+        int perMeasure = tune(1, sample, key, SEED).length() / sample;
+        String tune = tune(1, minimumLength / perMeasure + BLOCK, key, SEED);
+        while (tune.length() < minimumLength)
+            tune = tune(1, tune.length() / perMeasure * 11 / 10, key, SEED);
+        return tune;
+    }
+
+    /**
+     * @param voice index of a voice
+     * @return String its name in the V: fields
+     */
+    static String voiceName(int voice) {
+        return "v" + (voice + 1);
+    }
+
+    /**
+     * Appends a measure with the bar lines written before and after it
+     * @param tune text of the tune so far
+     * @param index index of the measure in the voice
+     * @param measures number of measures in the voice
+     * @param random source of the notes of the voice
+     */
+    private static void appendMeasure(StringBuilder tune, int index, int measures, Random random) {
+        //only whole blocks have a repeat, so every repeat is closed
+        boolean inBlock = index - index % BLOCK + BLOCK <= measures;
+        int position = index % BLOCK;
+
+        if (inBlock && position == 0)
+            tune.append("|: ");
+        else if (inBlock && position == 4)
+            tune.append("[1 ");
+        else if (inBlock && position == 5)
+            tune.append("[2 ");
+
+        appendElements(tune, random);
+
+        if (index == measures - 1)
+            tune.append(" |]");
+        else if (inBlock && position == 4)
+            tune.append(" :|");
+        else if (inBlock && position == BLOCK - 1)
+            tune.append(" || ");
+        else if (inBlock && position == 3)
+            tune.append(" |");
+        else
+            tune.append(" | ");
+    }
+
+    /**
+     * Appends elements lasting exactly 8 units, the length of a measure
+     * @param tune text of the tune so far
+     * @param random source of the notes
+     */
+    private static void appendElements(StringBuilder tune, Random random) {
+        int units = 8;
+        boolean first = true;
+        while (units > 0) {
+            if (!first)
+                tune.append(' ');
+            first = false;
+            int kind = random.nextInt(10);
+            if (kind < 2 && units >= 2) {
+                //triplet of three unit notes in the time of two
+                tune.append("(3");
+                for (int i = 0; i < 3; i++)
+                    appendNote(tune, random);
+                units -= 2;
+            } else if (kind < 4 && units >= 2) {
+                //chord of three notes, each lasting the chord
+                tune.append('[');
+                for (int i = 0; i < 3; i++) {
+                    appendNote(tune, random);
+                    tune.append('2');
+                }
+                tune.append(']');
+                units -= 2;
+            } else if (kind < 5) {
+                tune.append('z');
+                units -= 1;
+            } else if (kind < 6) {
+                //two halves of a unit
+                appendNote(tune, random);
+                tune.append('/');
+                appendNote(tune, random);
+                tune.append('/');
+                units -= 1;
+            } else {
+                appendNote(tune, random);
+                units -= 1;
+            }
+        }
+    }
+
+    /**
+     * Appends a pitch, with an accidental one time in five and octave marks one time in eight
+     * @param tune text of the tune so far
+     * @param random source of the notes
+     */
+    private static void appendNote(StringBuilder tune, Random random) {
+        if (random.nextInt(5) == 0)
+            tune.append(ACCIDENTALS[random.nextInt(ACCIDENTALS.length)]);
+        char letter = LETTERS.charAt(random.nextInt(LETTERS.length()));
+        tune.append(letter);
+        if (random.nextInt(8) == 0)
+            tune.append(Character.isLowerCase(letter) ? '\'' : ',');
+    }
+}
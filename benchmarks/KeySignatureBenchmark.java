@@ -0,0 +1,66 @@
+package abc.parser;
+
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import abc.parser.MusicParser.ABCGrammar;
+import abc.parser.MusicParser.HeaderGrammar;
+import abc.sound.*;
+import lib6005.parser.*;
+
+/**
+ * Benchmarks of note resolution on a dense single voice tune, in keys from no accidentals
+ * to seven sharps or flats, so that most notes take their accidental from the key signature
+ * or from an earlier accidental in the measure.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeySignatureBenchmark {
+
+    @Param({"C", "C#", "Cb", "F#m", "D dor"})
+    String key;
+
+    //measures in the tune
+    private static final int MEASURES = 2000;
+
+    private String voice;
+    private ParseTree<ABCGrammar> voiceTree;
+    private MusicParser.ParseContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, UnableToParseException {
+        String music = CorpusGenerator.tune(1, MEASURES, key, CorpusGenerator.SEED);
+        String header = MusicParser.getHeader(music);
+        Parser<HeaderGrammar> headerParser = GrammarCompiler.compile(
+                MusicParser.readResource(MusicParser.HEADER_GRAMMAR), HeaderGrammar.ROOT);
+        Parser<ABCGrammar> bodyParser = GrammarCompiler.compile(
+                MusicParser.readResource(MusicParser.BODY_GRAMMAR), ABCGrammar.ROOT);
+        context = MusicParser.buildContext(headerParser.parse(header), header);
+        voice = MusicParser.getVoice(music, "");
+        voiceTree = bodyParser.parse(voice);
+    }
+
+    @Benchmark
+    public int[] keyAccidentals() {
+        return MusicParser.keyAccidentals(MusicParser.keySignature(key));
+    }
+
+    @Benchmark
+    public MusicSequence buildVoice() {
+        return MusicParser.buildVoice(voiceTree, context);
+    }
+
+    @Benchmark
+    public VoiceEvents buildEvents() {
+        return MusicParser.buildEvents(voiceTree, context);
+    }
+
+    @Benchmark
+    public MusicSequence parseBodyDirect() {
+        return AbcBodyParser.parse(voice, context.unitBeats, context.keyAccidentals);
+    }
+}
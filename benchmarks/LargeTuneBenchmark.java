@@ -0,0 +1,78 @@
+package abc.parser;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import abc.sound.*;
+
+/**
+ * Benchmarks of reading and parsing a single 5 MB tune, large enough that it is
+ * memory-mapped by readMusic and that the header and voice splitting scan megabytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LargeTuneBenchmark {
+
+    //characters in the tune
+    private static final int SIZE = 5 * 1024 * 1024;
+
+    private File file;
+    private String music;
+    private int headerEnd;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        music = CorpusGenerator.largeTune(SIZE, "D");
+        file = File.createTempFile("benchmark-large", ".abc");
+        Files.write(file.toPath(), music.getBytes(Charset.defaultCharset()));
+        headerEnd = MusicParser.findHeaderEnd(music);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String fileToString() throws IOException {
+        return MusicParser.fileToString(file);
+    }
+
+    @Benchmark
+    public CharBuffer readMusicOnHeap() throws IOException {
+        return MusicParser.readMusic(file.toPath(), false);
+    }
+
+    @Benchmark
+    public CharBuffer readMusicMapped() throws IOException {
+        return MusicParser.readMusic(file.toPath(), true);
+    }
+
+    @Benchmark
+    public String getHeader() {
+        return MusicParser.getHeader(music);
+    }
+
+    @Benchmark
+    public Map<String, CharSequence> splitVoices() {
+        return MusicParser.splitVoices(music, headerEnd, Collections.singletonList(""));
+    }
+
+    @Benchmark
+    public MusicPiece parse() {
+        return MusicParser.parse(file);
+    }
+
+    @Benchmark
+    public MusicPiece parseDirect() {
+        return MusicParser.parse(file, null, MusicParser.Engine.DIRECT);
+    }
+}
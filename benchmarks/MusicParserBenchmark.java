@@ -0,0 +1,174 @@
+package abc.parser;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import abc.parser.MusicParser.ABCGrammar;
+import abc.parser.MusicParser.HeaderGrammar;
+import abc.sound.*;
+import lib6005.parser.*;
+
+/**
+ * Benchmarks of each stage of MusicParser, and of whole parses, on generated tunes
+ * of 1, 4 and 16 voices and 10 to 10,000 measures. Stages that work on a single voice
+ * use the first voice of the tune.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MusicParserBenchmark {
+
+    @Param({"1", "4", "16"})
+    int voices;
+
+    @Param({"10", "100", "1000", "10000"})
+    int measures;
+
+    private File file;
+    private Path storeDirectory;
+    private PieceStore store;
+    private EditableTune editable;
+    private int editOffset;
+    private String music;
+    private int headerEnd;
+    private String header;
+    private List<String> voiceNames;
+    private String voiceName;
+    private String voice;
+
+    private Parser<HeaderGrammar> headerParser;
+    private Parser<ABCGrammar> bodyParser;
+    private ParseTree<HeaderGrammar> headerTree;
+    private ParseTree<ABCGrammar> voiceTree;
+    private MusicParser.ParseContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, UnableToParseException {
+        music = CorpusGenerator.tune(voices, measures, "D", CorpusGenerator.SEED);
+        file = File.createTempFile("benchmark", ".abc");
+        Files.write(file.toPath(), music.getBytes(Charset.defaultCharset()));
+
+        headerEnd = MusicParser.findHeaderEnd(music);
+        header = MusicParser.getHeader(music);
+        headerParser = GrammarCompiler.compile(MusicParser.readResource(MusicParser.HEADER_GRAMMAR), HeaderGrammar.ROOT);
+        bodyParser = GrammarCompiler.compile(MusicParser.readResource(MusicParser.BODY_GRAMMAR), ABCGrammar.ROOT);
+        headerTree = headerParser.parse(header);
+        context = MusicParser.buildContext(headerTree, header);
+        Header built = context.header;
+
+        voiceNames = voices > 1 ? built.getVoices() : Collections.singletonList("");
+        voiceName = voiceNames.get(0);
+        voice = MusicParser.getVoice(music, voiceName);
+        voiceTree = bodyParser.parse(voice);
+
+        //stored once here, so that every parse of the benchmark loads it
+        storeDirectory = Files.createTempDirectory("benchmark-store");
+        store = new PieceStore(storeDirectory);
+        store.parse(file);
+
+        //the end of the last note of a measure in the middle of the body
+        editable = new EditableTune(music);
+        editOffset = music.indexOf(" | ", (headerEnd + music.length()) / 2);
+        if (editOffset < 0)
+            editOffset = music.indexOf(" |", headerEnd);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        file.delete();
+        try (DirectoryStream<Path> stored = Files.newDirectoryStream(storeDirectory)) {
+            for (Path piece : stored)
+                Files.delete(piece);
+        }
+        Files.delete(storeDirectory);
+    }
+
+    @Benchmark
+    public String fileToString() throws IOException {
+        return MusicParser.fileToString(file);
+    }
+
+    @Benchmark
+    public CharBuffer readMusic() throws IOException {
+        return MusicParser.readMusic(file.toPath());
+    }
+
+    @Benchmark
+    public String getHeader() {
+        return MusicParser.getHeader(music);
+    }
+
+    @Benchmark
+    public String getVoice() {
+        return MusicParser.getVoice(music, voiceName);
+    }
+
+    @Benchmark
+    public Map<String, CharSequence> splitVoices() {
+        return MusicParser.splitVoices(music, headerEnd, voiceNames);
+    }
+
+    @Benchmark
+    public ParseTree<HeaderGrammar> parseHeaderGrammar() throws UnableToParseException {
+        return headerParser.parse(header);
+    }
+
+    @Benchmark
+    public ParseTree<ABCGrammar> parseBodyGrammar() throws UnableToParseException {
+        return bodyParser.parse(voice);
+    }
+
+    @Benchmark
+    public Header buildHeader() {
+        return MusicParser.buildHeader(headerTree, header);
+    }
+
+    @Benchmark
+    public MusicSequence buildVoice() {
+        return MusicParser.buildVoice(voiceTree, context);
+    }
+
+    @Benchmark
+    public VoiceEvents buildEvents() {
+        return MusicParser.buildEvents(voiceTree, context);
+    }
+
+    @Benchmark
+    public MusicSequence parseBodyDirect() {
+        return AbcBodyParser.parse(voice, context.unitBeats, context.keyAccidentals);
+    }
+
+    @Benchmark
+    public MusicPiece parse() {
+        return MusicParser.parse(file);
+    }
+
+    @Benchmark
+    public MusicPiece parseDirect() {
+        return MusicParser.parse(file, null, MusicParser.Engine.DIRECT);
+    }
+
+    @Benchmark
+    public MusicPiece loadStored() {
+        return store.parse(file);
+    }
+
+    @Benchmark
+    public MusicPiece editMeasure() {
+        //types a note and deletes it again, so that every invocation edits the same tune
+        editable.edit(editOffset, 0, "A");
+        return editable.edit(editOffset, 1, "");
+    }
+
+    @Benchmark
+    public List<VoiceEvents> parseEvents() {
+        return MusicParser.parseEvents(file);
+    }
+}
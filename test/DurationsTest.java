@@ -0,0 +1,53 @@
+package abc.parser;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Checks that Durations.fromDouble gives back the fractions that L: and Q: are written as.
+ * A header that does not write L: or Q: only has its default as a double, and ParseContext
+ * recovers the fraction from it.
+ */
+public class DurationsTest {
+
+    //numerators and denominators of L: and Q: values real tunes use
+    private static final int[][] HEADER_FRACTIONS = {
+        {1, 8}, {1, 4}, {3, 8}, {1, 16}, {1, 3}, {1, 2}, {3, 4}, {1, 1}, {2, 3}, {1, 32}, {1, 64}, {3, 16},
+    };
+
+    @Test
+    public void testFromDoubleRoundTripsHeaderFractions() {
+        for (int[] fraction : HEADER_FRACTIONS) {
+            long expected = Durations.of(fraction[0], fraction[1]);
+            assertEquals(fraction[0] + "/" + fraction[1], Durations.toString(expected),
+                    Durations.toString(Durations.fromDouble(fraction[0] / (double) fraction[1])));
+            assertEquals(fraction[0] + "/" + fraction[1], expected, Durations.fromDouble(Durations.toDouble(expected)));
+        }
+    }
+
+    @Test
+    public void testFromDoubleUnitBeats() {
+        //the unit length in beats of each pair, as ParseContext divides them
+        for (int[] length : HEADER_FRACTIONS) {
+            for (int[] beat : HEADER_FRACTIONS) {
+                long exact = Durations.divide(Durations.of(length[0], length[1]), Durations.of(beat[0], beat[1]));
+                long recovered = Durations.divide(Durations.fromDouble(length[0] / (double) length[1]),
+                        Durations.fromDouble(beat[0] / (double) beat[1]));
+                assertEquals(Durations.toString(exact), exact, recovered);
+            }
+        }
+    }
+
+    @Test
+    public void testFromDoubleWholeAndNegative() {
+        assertEquals(Durations.ZERO, Durations.fromDouble(0));
+        assertEquals(Durations.of(3, 1), Durations.fromDouble(3));
+        assertEquals(Durations.of(-3, 8), Durations.fromDouble(-0.375));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testFromDoubleRejectsInfinity() {
+        Durations.fromDouble(Double.POSITIVE_INFINITY);
+    }
+}
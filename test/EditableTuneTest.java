@@ -0,0 +1,95 @@
+package abc.parser;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import abc.parser.MusicParser.Engine;
+import abc.sound.MusicPiece;
+
+/**
+ * Checks that editing a tune gives the piece of its edited text parsed from scratch. Each test
+ * applies a sequence of edits, and after each edit the piece returned by EditableTune.edit must
+ * equal the piece MusicParser parses from getMusic() with Engine.DIRECT, which EditableTune reads
+ * bodies with, and that piece must play the same notes as the one of the default Engine.GRAMMAR.
+ */
+public class EditableTuneTest {
+
+    private static final String TUNE = "X:1\nT:Edits\nM:4/4\nL:1/8\nQ:1/8=100\nV:1\nV:2\nK:D\n"
+            + "V:1\nA B c d | e f g a | b c' d' e' |]\n"
+            + "V:2\nC D E F | G A B c | d e f g |]\n";
+
+    @Test
+    public void testEditsWithinLines() {
+        EditableTune tune = new EditableTune(TUNE);
+        assertFresh(tune, tune.getPiece());
+        //accidentals, durations, tuplets and chords
+        assertFresh(tune, replace(tune, "e f g a", "e ^f g a"));
+        assertFresh(tune, replace(tune, "G A B c", "G A3/2 B/ c"));
+        assertFresh(tune, replace(tune, "C D E F", "(3CDE F"));
+        assertFresh(tune, replace(tune, "d e f g", "[d2f2] e f g"));
+        //a repeat from the start, then from |:, then with first and second endings
+        assertFresh(tune, replace(tune, "| b c'", ":| b c'"));
+        assertFresh(tune, replace(tune, "c d | e", "c d |: e"));
+        assertFresh(tune, replace(tune, "e ^f g a :|", "e ^f g a | [1 g a :| [2 a g |"));
+        //a whole measure removed, then a note typed one character at a time
+        assertFresh(tune, replace(tune, "G A3/2 B/ c | ", ""));
+        int offset = tune.getMusic().indexOf("e f g |]") + "e f g".length();
+        String typed = " G/4";
+        for (int i = 0; i < typed.length(); i++)
+            assertFresh(tune, tune.edit(offset + i, 0, typed.substring(i, i + 1)));
+    }
+
+    @Test
+    public void testEditsAcrossLinesAndHeader() {
+        EditableTune tune = new EditableTune(TUNE);
+        //a line break typed into a voice, then a comment line and a line removed
+        assertFresh(tune, replace(tune, "e' |]\nV:2", "e' |\nA B |]\nV:2"));
+        assertFresh(tune, replace(tune, "\nV:2\nC", "\n% second voice\nV:2\nC"));
+        assertFresh(tune, replace(tune, "e' |\nA B |]", "e' |]"));
+        //a key changing the accidentals of every voice, then a length changing every duration
+        assertFresh(tune, replace(tune, "K:D", "K:Bb"));
+        assertFresh(tune, replace(tune, "L:1/8", "L:1/4"));
+        assertFresh(tune, replace(tune, "A B c d", "A B =c d"));
+    }
+
+    @Test
+    public void testInvalidEditKeepsTune() {
+        EditableTune tune = new EditableTune(TUNE);
+        MusicPiece piece = replace(tune, "e f g a", "e f/ g a");
+        String music = tune.getMusic();
+        try {
+            replace(tune, "f/", "f/H");
+            fail("accepted a note H");
+        } catch (IllegalArgumentException expected) {
+            //the tune is left as it was
+        }
+        assertEquals(music, tune.getMusic());
+        assertSame(piece, tune.getPiece());
+        assertFresh(tune, replace(tune, "f/", "f/4"));
+    }
+
+    /**
+     * Replaces the first occurrence of some text of the tune
+     * @param tune EditableTune to edit
+     * @param target text to replace, which must be in the tune
+     * @param replacement text to put in its place
+     * @return MusicPiece returned by the edit
+     */
+    private static MusicPiece replace(EditableTune tune, String target, String replacement) {
+        int offset = tune.getMusic().indexOf(target);
+        assertTrue(target, offset >= 0);
+        return tune.edit(offset, target.length(), replacement);
+    }
+
+    /**
+     * Asserts that an edited piece is the piece of the edited text parsed from scratch
+     * @param tune EditableTune just edited
+     * @param edited MusicPiece returned by the edit
+     */
+    private static void assertFresh(EditableTune tune, MusicPiece edited) {
+        String music = tune.getMusic();
+        assertSame(edited, tune.getPiece());
+        assertEquals(music, MusicParser.parseTune(music, null, Engine.DIRECT), edited);
+        EngineDifferentialTest.assertSamePlayed(music);
+    }
+}
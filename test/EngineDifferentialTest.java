@@ -0,0 +1,177 @@
+package abc.parser;
+
+import static org.junit.Assert.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+import abc.parser.MusicParser.Engine;
+import abc.sound.Header.HeaderBuilder;
+
+/**
+ * Checks that both engines build the same pieces, on the tunes of the benchmark corpus and on
+ * hand-written tunes around octaves, accidentals, durations, tuplets and endings. Each engine
+ * records the calls that build its piece, see PieceRecipe, and the calls are played out into
+ * the notes of every measure in the order they are played. The engines join measures into
+ * differently shaped trees, so it is what is played that must be the same.
+ */
+public class EngineDifferentialTest {
+
+    //plays recorded calls out into one line of text per measure played, in order
+    private static final PieceRecipe.Builder<String, List<String>> PLAYED = new PieceRecipe.Builder<String, List<String>>() {
+        @Override
+        public String rest(double duration) {
+            return "z" + duration;
+        }
+
+        @Override
+        public String note(int octave, int accidental, char pitchLetter, double duration) {
+            return MusicParser.ACCIDENTAL_NAMES[accidental + 2] + pitchLetter + octave + "/" + duration;
+        }
+
+        @Override
+        public String chord(List<String> notes) {
+            return "[" + String.join(" ", notes) + "]";
+        }
+
+        @Override
+        public String tuplet(List<String> elements) {
+            return "(" + String.join(" ", elements) + ")";
+        }
+
+        @Override
+        public List<String> measure(List<String> elements) {
+            return Collections.singletonList(String.join(" ", elements));
+        }
+
+        @Override
+        public List<String> join(List<List<String>> sequences) {
+            List<String> joined = new ArrayList<>();
+            for (List<String> sequence : sequences)
+                joined.addAll(sequence);
+            return joined;
+        }
+    };
+
+    @Test
+    public void testGeneratedCorpus() {
+        for (String key : Arrays.asList("C", "D", "Bb", "F#m", "Eb", "C#")) {
+            for (int voices : new int[] {1, 4, 16}) {
+                for (int measures : new int[] {1, 10, 17, 100}) {
+                    assertSamePlayed(CorpusGenerator.tune(voices, measures, key, CorpusGenerator.SEED));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOctaves() {
+        //each ' raises the octave of the letter and each , lowers it
+        String tune = tune("C", "C, C,, c, c,, | C c c' c'' | C' C'' c'' c, |]");
+        assertSamePlayed(tune);
+        assertEquals(Arrays.asList(
+                "=C-1/1.0 =C-2/1.0 =C0/1.0 =C-1/1.0",
+                "=C0/1.0 =C1/1.0 =C2/1.0 =C3/1.0",
+                "=C1/1.0 =C2/1.0 =C3/1.0 =C0/1.0"), played(tune, Engine.GRAMMAR).get(0));
+    }
+
+    @Test
+    public void testAccidentals() {
+        //written accidentals carry to the same pitch and octave until the end of the measure
+        assertSamePlayed(tune("C", "^F F f F | F _B B b | =B ^^c c __d | d c B F |]"));
+        assertSamePlayed(tune("D", "F f =F F | f c =c c' | ^^C C C, _c | c F f C |]"));
+        assertSamePlayed(tune("Bb", "B E A D | =B B b =e | e E, _G G | [B=E] [BE] b B |]"));
+        assertSamePlayed(tune("F#m", "^^F F =G G | [^C2E2] C c C' | _D D D D |]"));
+        //and on octaves more than 10 away from middle C
+        assertSamePlayed(tune("C", "^c'''''''''''' c'''''''''''' c''''''''''' c | _C,,,,,,,,,,,, C,,,,,,,,,,,, C |]"));
+    }
+
+    @Test
+    public void testDurations() {
+        assertSamePlayed(tune("C", "z z2 z/ z3/2 | A/ A/4 A3/ A2 | A3/4 A/2 A4 A/8 |]"));
+    }
+
+    @Test
+    public void testTuplets() {
+        assertSamePlayed(tune("C", "(2AB (3cde (4FGAB | (3[C2E2] D E (2^F F | (3A/B/c/ (4_B B B b |]"));
+    }
+
+    @Test
+    public void testEndings() {
+        //a repeat from the start of the section, from |:, and with first and second endings
+        assertSamePlayed(tune("C", "A B | c d :| e f |]"));
+        assertSamePlayed(tune("C", "|: A B | c d :| e f |]"));
+        assertSamePlayed(tune("C", "|: A B | c d | [1 e f :| [2 g a | b c |]"));
+        assertSamePlayed(tune("C", "|: A B | [1 c d | e f :| [2 g a | b c || |: d e :| f g |]"));
+        //an accidental does not carry from the start of a repeat into its first ending
+        assertSamePlayed(tune("G", "|: ^c c | [1 c C :| [2 c =f |]"));
+    }
+
+    @Test
+    public void testVoices() {
+        String tune = "X:1\nT:Voices\nM:4/4\nL:1/8\nQ:1/8=100\nV:1\nV:2\nK:A\n"
+                + "V:1\n|: a b c' d | [1 e f :| [2 g, a, |]\n"
+                + "V:2\n(3CDE F G | ^G G G, G |]\n";
+        assertSamePlayed(tune);
+    }
+
+    @Test
+    public void testZeroDurations() {
+        for (String body : Arrays.asList("A0 B |]", "A/0 B |]", "z0 B |]", "[A0C] B |]")) {
+            for (Engine engine : Engine.values()) {
+                try {
+                    MusicParser.parseTune(tune("C", body), null, engine);
+                    fail(engine + " accepted " + body);
+                } catch (IllegalArgumentException expected) {
+                    //both engines reject a zero duration
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRecordingOnVoiceTasks() throws InterruptedException {
+        String tune = CorpusGenerator.tune(4, 100, "D", CorpusGenerator.SEED);
+        ExecutorService voiceExecutor = Executors.newFixedThreadPool(4);
+        try {
+            for (Engine engine : Engine.values()) {
+                PieceRecipe inTurn = new PieceRecipe();
+                MusicParser.parseTune(tune, null, engine, inTurn);
+                PieceRecipe onTasks = new PieceRecipe();
+                MusicParser.parseTune(tune, voiceExecutor, engine, onTasks);
+                assertArrayEquals(inTurn.toByteArray(), onTasks.toByteArray());
+            }
+        } finally {
+            voiceExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param key K: field of the tune
+     * @param body the body of a single voice
+     * @return String a tune in which a note of duration 1 lasts 1 beat
+     */
+    private static String tune(String key, String body) {
+        return "X:1\nT:Edge case\nM:4/4\nL:1/8\nQ:1/8=100\nK:" + key + "\n" + body + "\n";
+    }
+
+    /**
+     * Asserts that both engines play the same notes in every voice of a tune
+     * @param tune a tune in abc notation
+     */
+    static void assertSamePlayed(String tune) {
+        assertEquals(tune, played(tune, Engine.GRAMMAR), played(tune, Engine.DIRECT));
+    }
+
+    /**
+     * @param tune a tune in abc notation
+     * @param engine Engine parsing the body of each voice
+     * @return List<List<String>> for each voice, the measures it plays in order
+     */
+    private static List<List<String>> played(String tune, Engine engine) {
+        PieceRecipe recipe = new PieceRecipe();
+        MusicParser.parseTune(tune, null, engine, recipe);
+        return PieceRecipe.replay(ByteBuffer.wrap(recipe.toByteArray()), new HeaderBuilder(), PLAYED);
+    }
+}